@@ -0,0 +1,121 @@
+package org.apache.cordova.health;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * On-device store of aggregated buckets whose time window is closed, so that they do not need to be read again.
+ * MIT licensed.
+ */
+class BucketStore extends SQLiteOpenHelper {
+  private static final String DB_NAME = "cordova-plugin-health.db";
+  private static final int DB_VERSION = 3;
+
+  private static final String TABLE = "buckets";
+
+  BucketStore(Context context) {
+    super(context, DB_NAME, null, DB_VERSION);
+  }
+
+  @Override
+  public void onCreate(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE " + TABLE + " ("
+      + "account TEXT NOT NULL, "
+      + "datatype TEXT NOT NULL, "
+      + "filtered INTEGER NOT NULL, "
+      + "bucket TEXT NOT NULL, "
+      + "start_date INTEGER NOT NULL, "
+      + "end_date INTEGER NOT NULL, "
+      + "value TEXT NOT NULL, "
+      + "PRIMARY KEY (account, datatype, filtered, bucket, start_date))");
+  }
+
+  @Override
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    // the content can always be read again from Google Fit
+    db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+    onCreate(db);
+  }
+
+  /**
+   * Loads the stored buckets that follow each other without gaps from the start time.
+   *
+   * @param account Google account the buckets were read for
+   * @param st   start of the first bucket
+   * @param step duration of a bucket, in milliseconds
+   * @param et   end of the queried window
+   * @return the contiguous stored buckets, may be empty
+   */
+  synchronized List<JSONObject> load(String account, String datatype, boolean filtered, String bucket, long st, long step, long et) throws JSONException {
+    List<JSONObject> buckets = new ArrayList<>();
+    Cursor cursor = getReadableDatabase().query(TABLE,
+      new String[]{"start_date", "end_date", "value"},
+      "account = ? AND datatype = ? AND filtered = ? AND bucket = ? AND start_date >= ? AND start_date < ?",
+      new String[]{account, datatype, filtered ? "1" : "0", bucket, String.valueOf(st), String.valueOf(et)},
+      null, null, "start_date ASC");
+    try {
+      long expected = st;
+      while (cursor.moveToNext()) {
+        if (cursor.getLong(0) != expected || cursor.getLong(1) != expected + step) break;
+        buckets.add(new JSONObject(cursor.getString(2)));
+        expected += step;
+      }
+    } finally {
+      cursor.close();
+    }
+    return buckets;
+  }
+
+  // stores the given buckets of an account, replacing existing ones starting at the same time
+  synchronized void save(String account, String datatype, boolean filtered, String bucket, List<JSONObject> buckets) throws JSONException {
+    if (buckets.isEmpty()) return;
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      for (JSONObject b : buckets) {
+        ContentValues values = new ContentValues();
+        values.put("account", account);
+        values.put("datatype", datatype);
+        values.put("filtered", filtered ? 1 : 0);
+        values.put("bucket", bucket);
+        values.put("start_date", b.getLong("startDate"));
+        values.put("end_date", b.getLong("endDate"));
+        values.put("value", b.toString());
+        db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  // removes the buckets of the given data types that overlap the given time window, for all accounts
+  synchronized void invalidate(Collection<String> datatypes, long st, long et) {
+    if (datatypes.isEmpty()) return;
+    SQLiteDatabase db = getWritableDatabase();
+    db.beginTransaction();
+    try {
+      for (String datatype : datatypes) {
+        db.delete(TABLE, "datatype = ? AND start_date <= ? AND end_date >= ?",
+          new String[]{datatype, String.valueOf(et), String.valueOf(st)});
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  synchronized void clear() {
+    getWritableDatabase().delete(TABLE, null, null);
+  }
+}
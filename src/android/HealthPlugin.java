@@ -2,18 +2,25 @@ package org.apache.cordova.health;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
+import android.util.Base64;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.google.android.gms.auth.api.signin.GoogleSignIn;
 import com.google.android.gms.auth.api.signin.GoogleSignInAccount;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
+import com.google.android.gms.common.api.ApiException;
+import com.google.android.gms.common.api.CommonStatusCodes;
 import com.google.android.gms.fitness.Fitness;
 import com.google.android.gms.fitness.FitnessOptions;
+import com.google.android.gms.fitness.FitnessStatusCodes;
 import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
 import com.google.android.gms.fitness.data.DataSet;
@@ -28,6 +35,7 @@ import com.google.android.gms.fitness.request.DataDeleteRequest;
 import com.google.android.gms.fitness.request.DataReadRequest;
 import com.google.android.gms.fitness.result.DataReadResponse;
 import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
 import com.google.android.gms.tasks.Tasks;
 
 import org.apache.cordova.CallbackContext;
@@ -39,14 +47,29 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Health plugin Android code.
@@ -68,10 +91,78 @@ public class HealthPlugin extends CordovaPlugin {
   private static final int REQUEST_OAUTH = 1;
   private static final int REQUEST_DYN_PERMS = 2;
 
+  // maximum number of data points in a data set inserted into Google Fit
+  private static final int MAX_DATASET_POINTS = 1000;
+  // number of times a window of a long raw read is tried before failing the whole read
+  private static final int SHARD_ATTEMPTS = 3;
+  // shared preferences where the state of sync() is kept
+  private static final String SYNC_PREFS = "cordova-plugin-health-sync";
+  // shared preferences where the warm-up list is kept
+  private static final String WARMUP_PREFS = "cordova-plugin-health-warmup";
+
   private final HashSet<String> authReadTypes = new HashSet<>();
   private final HashSet<String> authReadWriteTypes = new HashSet<>();
   private boolean authAutoresolve;
 
+  // executors owned by the plugin, kept separate so that long reads do not hold back writes and authorisation
+  private ThreadPoolExecutor readExecutor;
+  private ThreadPoolExecutor writeExecutor;
+  private ThreadPoolExecutor authExecutor;
+
+  // executor on which the results of Google Fit tasks are processed, so that the main thread is not used
+  private ExecutorService taskExecutor;
+
+  // maximum number of distance and calories reads of activity buckets running in parallel
+  private int activityParallelism;
+  // maximum number of requests of a batch running in parallel
+  private int batchParallelism;
+  // raw reads longer than this are split into windows of this size
+  private long shardWindow;
+  // maximum number of windows of a raw read running in parallel
+  private int shardParallelism;
+
+  // results of recent queries
+  private QueryCache queryCache;
+  // results being read, by cache key, so that identical requests wait for the same read
+  private final Map<String, Task<Object>> resultsInFlight = new HashMap<>();
+  // aggregated queries read in the background when the app is resumed, see setWarmUp()
+  private JSONArray warmUpList = new JSONArray();
+
+  // closed hourly and daily buckets of aggregated queries, null if disabled
+  private BucketStore bucketStore;
+  // time after the end of a bucket before it is considered closed
+  private long bucketSettleTime;
+
+  // Helper class used for storing the basal metabolic rate average of a day
+  private static class BasalAverage {
+    public Task<Float> task;
+    public long computedAt;
+
+    public BasalAverage(Task<Float> task, long computedAt) {
+      this.task = task;
+      this.computedAt = computedAt;
+    }
+  }
+
+  // basal metabolic rate averages by start of day, shared by all queries
+  private final LinkedHashMap<Long, BasalAverage> basalAverages = new LinkedHashMap<Long, BasalAverage>() {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, BasalAverage> eldest) {
+      return size() > 32;
+    }
+  };
+  // time after which a basal metabolic rate average is refreshed
+  private long basalTTL;
+
+  // time window covered by a page of a paginated query
+  private long pageWindow;
+
+  // samples to be stored in batches, null if stores are written straight away
+  private WriteQueue writeQueue;
+
+  // time before the last data point seen by sync() that is read again, to catch data points stored late
+  private long syncOverlap;
+
   public static Map<String, DataType> datatypes = new HashMap<String, DataType>();
 
   static {
@@ -102,7 +193,7 @@ public class HealthPlugin extends CordovaPlugin {
   }
 
   // Lookup for nutrition fields and units
-  public static Map<String, NutrientFieldInfo> nutrientFields = new HashMap<String, NutrientFieldInfo>();
+  public static Map<String, NutrientFieldInfo> nutrientFields = new LinkedHashMap<String, NutrientFieldInfo>();
 
   static {
     nutrientFields.put("nutrition.calories", new NutrientFieldInfo(Field.NUTRIENT_CALORIES, "kcal"));
@@ -125,6 +216,18 @@ public class HealthPlugin extends CordovaPlugin {
     nutrientFields.put("nutrition.iron", new NutrientFieldInfo(Field.NUTRIENT_IRON, "mg"));
   }
 
+  // names of the nutrients and their keys in the Google Fit nutrients map, at the same positions
+  private static final String[] nutrientNames;
+  private static final String[] nutrientKeys;
+
+  static {
+    nutrientNames = nutrientFields.keySet().toArray(new String[0]);
+    nutrientKeys = new String[nutrientNames.length];
+    for (int i = 0; i < nutrientNames.length; i++) {
+      nutrientKeys[i] = nutrientFields.get(nutrientNames[i]).field;
+    }
+  }
+
   static {
     datatypes.put("nutrition", DataType.TYPE_NUTRITION);
     datatypes.put("nutrition.water", DataType.TYPE_HYDRATION);
@@ -133,6 +236,103 @@ public class HealthPlugin extends CordovaPlugin {
     }
   }
 
+  // reads the value of a data point into a json object
+  private interface Decoder {
+    void decode(DataPoint datapoint, JSONObject obj) throws JSONException;
+  }
+
+  // sets the fields of a data point from a sample coming from JavaScript
+  private interface Encoder {
+    void encode(JSONObject sample, DataPoint.Builder datapointBuilder) throws JSONException;
+  }
+
+  // Helper class used for converting the data points of a data type from and to json
+  private static class DatapointCodec {
+    public final Decoder decoder;
+    // null if the data type cannot be stored
+    public final Encoder encoder;
+
+    public DatapointCodec(Decoder decoder, Encoder encoder) {
+      this.decoder = decoder;
+      this.encoder = encoder;
+    }
+  }
+
+  // Lookup for the codecs of the Google Fit data types
+  private static Map<DataType, DatapointCodec> codecs = new HashMap<DataType, DatapointCodec>();
+
+  // Lookup for the codecs of single nutrients, which share the same Google Fit data type
+  private static Map<String, DatapointCodec> nutrientCodecs = new HashMap<String, DatapointCodec>();
+
+  // codecs of nutrition items, water read together with nutrition is returned as a nutrition item
+  private static final DatapointCodec nutritionCodec = new DatapointCodec(HealthPlugin::decodeNutrition, HealthPlugin::encodeNutrition);
+  private static final DatapointCodec waterItemCodec = new DatapointCodec(HealthPlugin::decodeWaterItem, null);
+
+  //reference for fields: https://developers.google.com/android/reference/com/google/android/gms/fitness/data/Field.html
+  static {
+    codecs.put(DataType.TYPE_STEP_COUNT_DELTA, new DatapointCodec(
+      (datapoint, obj) -> {
+        obj.put("value", datapoint.getValue(Field.FIELD_STEPS).asInt());
+        obj.put("unit", "count");
+      },
+      (sample, datapointBuilder) -> datapointBuilder.setField(Field.FIELD_STEPS, Integer.parseInt(sample.getString("value")))));
+    codecs.put(DataType.TYPE_DISTANCE_DELTA, floatCodec(Field.FIELD_DISTANCE, "m", true));
+    // documentation says it's litres, but from experiments I get ml
+    codecs.put(DataType.TYPE_HYDRATION, floatCodec(Field.FIELD_VOLUME, "ml", true));
+    codecs.put(DataType.TYPE_CALORIES_EXPENDED, floatCodec(Field.FIELD_CALORIES, "kcal", true));
+    codecs.put(DataType.TYPE_BASAL_METABOLIC_RATE, floatCodec(Field.FIELD_CALORIES, "kcal", false));
+    codecs.put(DataType.TYPE_HEIGHT, floatCodec(Field.FIELD_HEIGHT, "m", true));
+    codecs.put(DataType.TYPE_WEIGHT, floatCodec(Field.FIELD_WEIGHT, "kg", true));
+    codecs.put(DataType.TYPE_HEART_RATE_BPM, floatCodec(Field.FIELD_BPM, "bpm", true));
+    codecs.put(DataType.TYPE_BODY_FAT_PERCENTAGE, floatCodec(Field.FIELD_PERCENTAGE, "percent", true));
+    codecs.put(DataType.TYPE_ACTIVITY_SEGMENT, new DatapointCodec(
+      (datapoint, obj) -> {
+        obj.put("value", datapoint.getValue(Field.FIELD_ACTIVITY).asActivity());
+        obj.put("unit", "activityType");
+      },
+      (sample, datapointBuilder) -> datapointBuilder.setField(Field.FIELD_ACTIVITY, sample.getString("value"))));
+    codecs.put(HealthDataTypes.TYPE_OXYGEN_SATURATION, floatCodec(HealthFields.FIELD_OXYGEN_SATURATION, "%", false));
+    codecs.put(HealthDataTypes.TYPE_BLOOD_GLUCOSE, new DatapointCodec(HealthPlugin::decodeBloodGlucose, HealthPlugin::encodeBloodGlucose));
+    codecs.put(HealthDataTypes.TYPE_BLOOD_PRESSURE, new DatapointCodec(HealthPlugin::decodeBloodPressure, HealthPlugin::encodeBloodPressure));
+    codecs.put(DataType.TYPE_SLEEP_SEGMENT, new DatapointCodec(HealthPlugin::decodeSleep, null));
+
+    for (Map.Entry<String, NutrientFieldInfo> entry : nutrientFields.entrySet()) {
+      final NutrientFieldInfo fieldInfo = entry.getValue();
+      nutrientCodecs.put(entry.getKey(), new DatapointCodec(
+        (datapoint, obj) -> {
+          Float value = datapoint.getValue(Field.FIELD_NUTRIENTS).getKeyValue(fieldInfo.field);
+          obj.put("value", value != null ? (float) value : 0f);
+          obj.put("unit", fieldInfo.unit);
+        },
+        (sample, datapointBuilder) -> {
+          Map<String, Float> value = new HashMap<>();
+          value.put(fieldInfo.field, (float) sample.getDouble("value"));
+          datapointBuilder.setField(Field.FIELD_NUTRIENTS, value);
+        }));
+    }
+  }
+
+  // codec of a data type with a single float value
+  private static DatapointCodec floatCodec(final Field field, final String unit, boolean storable) {
+    return new DatapointCodec(
+      (datapoint, obj) -> {
+        obj.put("value", datapoint.getValue(field).asFloat());
+        obj.put("unit", unit);
+      },
+      !storable ? null : (sample, datapointBuilder) -> datapointBuilder.setField(field, (float) sample.getDouble("value")));
+  }
+
+  // gets the codec of the Google Fit data type read or stored for a data type, null if there is none
+  private static DatapointCodec codecFor(String datatype, DataType dt) {
+    if (datatype.equalsIgnoreCase("nutrition")) {
+      return dt.equals(DataType.TYPE_HYDRATION) ? waterItemCodec : nutritionCodec;
+    }
+    if (dt.equals(DataType.TYPE_NUTRITION)) {
+      return nutrientCodecs.get(datatype);
+    }
+    return codecs.get(dt);
+  }
+
   public HealthPlugin() {
   }
 
@@ -141,6 +341,93 @@ public class HealthPlugin extends CordovaPlugin {
   public void initialize(CordovaInterface cordova, CordovaWebView webView) {
     super.initialize(cordova, webView);
     this.cordova = cordova;
+    readExecutor = createExecutor("Read", 4, 32);
+    writeExecutor = createExecutor("Write", 2, 64);
+    authExecutor = createExecutor("Auth", 1, 4);
+    taskExecutor = Executors.newFixedThreadPool(2, r -> new Thread(r, TAG + "-tasks"));
+    activityParallelism = Math.max(1, preferences.getInteger("HealthActivityParallelism", 4));
+    batchParallelism = Math.max(1, preferences.getInteger("HealthBatchParallelism", 2));
+    shardWindow = TimeUnit.DAYS.toMillis(Math.max(1, preferences.getInteger("HealthShardDays", 7)));
+    shardParallelism = Math.max(1, preferences.getInteger("HealthShardParallelism", 4));
+    queryCache = new QueryCache(Math.max(0, preferences.getInteger("HealthCacheSize", 0)),
+      TimeUnit.SECONDS.toMillis(preferences.getInteger("HealthCacheTTL", 300)));
+    if (preferences.getBoolean("HealthBucketStore", false)) {
+      bucketStore = new BucketStore(cordova.getContext());
+    }
+    bucketSettleTime = TimeUnit.HOURS.toMillis(preferences.getInteger("HealthBucketSettleHours", 24));
+    basalTTL = TimeUnit.MINUTES.toMillis(preferences.getInteger("HealthBasalTTL", 60));
+    pageWindow = TimeUnit.DAYS.toMillis(Math.max(1, preferences.getInteger("HealthPageDays", 7)));
+    syncOverlap = TimeUnit.MINUTES.toMillis(Math.max(0, preferences.getInteger("HealthSyncOverlapMinutes", 60)));
+    try {
+      warmUpList = new JSONArray(cordova.getContext().getSharedPreferences(WARMUP_PREFS, Context.MODE_PRIVATE).getString("list", "[]"));
+    } catch (JSONException ex) {
+      Log.w(TAG, "Cannot read the warm-up list", ex);
+    }
+    if (preferences.getBoolean("HealthWriteBehind", false)) {
+      writeQueue = new WriteQueue(new File(cordova.getContext().getFilesDir(), "cordova-plugin-health-writes.jsonl"),
+        samples -> this.account == null ? null : insertSamples(samples),
+        TimeUnit.SECONDS.toMillis(Math.max(1, preferences.getInteger("HealthWriteFlushSeconds", 30))),
+        Math.max(1, preferences.getInteger("HealthWriteFlushSize", 100)),
+        Math.max(1, preferences.getInteger("HealthWriteMaxAttempts", 5)));
+    }
+  }
+
+  // called when the app comes back to foreground
+  @Override
+  public void onResume(boolean multitasking) {
+    super.onResume(multitasking);
+    warmUp();
+  }
+
+  // called when the app goes to background
+  @Override
+  public void onPause(boolean multitasking) {
+    // the app may be killed while in background, queued samples are written before that
+    if (writeQueue != null) writeQueue.flush();
+    super.onPause(multitasking);
+  }
+
+  // releases the threads owned by the plugin
+  @Override
+  public void onDestroy() {
+    if (writeQueue != null) writeQueue.close();
+    readExecutor.shutdownNow();
+    writeExecutor.shutdownNow();
+    authExecutor.shutdownNow();
+    taskExecutor.shutdownNow();
+    if (bucketStore != null) bucketStore.close();
+    super.onDestroy();
+  }
+
+  // creates a fixed size executor with a bounded queue, size and queue depth can be set in the preferences
+  private ThreadPoolExecutor createExecutor(final String name, int defaultThreads, int defaultQueue) {
+    int threads = Math.max(1, preferences.getInteger("Health" + name + "Threads", defaultThreads));
+    int queue = Math.max(1, preferences.getInteger("Health" + name + "Queue", defaultQueue));
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<Runnable>(queue),
+      r -> new Thread(r, TAG + "-" + name.toLowerCase()),
+      new ThreadPoolExecutor.AbortPolicy());
+  }
+
+  // an action to be run outside of the WebView thread
+  private interface PluginAction {
+    void run() throws Exception;
+  }
+
+  // runs an action on the given executor, if its queue is full the action is rejected with an error
+  private void runAsync(ThreadPoolExecutor executor, final CallbackContext callbackContext, final PluginAction action) {
+    try {
+      executor.execute(() -> {
+        try {
+          action.run();
+        } catch (Exception ex) {
+          callbackContext.error(ex.getMessage());
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      Log.w(TAG, "Request rejected, too many pending requests");
+      callbackContext.error("Too many pending requests, try again later");
+    }
   }
 
   // called once custom data types have been created
@@ -219,91 +506,55 @@ public class HealthPlugin extends CordovaPlugin {
       promptInstall(callbackContext);
       return true;
     } else if ("requestAuthorization".equals(action)) {
-      cordova.getThreadPool().execute(new Runnable() {
-        @Override
-        public void run() {
-          try {
-            checkAuthorization(args, callbackContext, true); // with autoresolve
-          } catch (Exception ex) {
-            callbackContext.error(ex.getMessage());
-          }
-        }
+      runAsync(authExecutor, callbackContext, () -> {
+        checkAuthorization(args, callbackContext, true); // with autoresolve
       });
       return true;
     } else if ("checkAuthorization".equals(action)) {
-      cordova.getThreadPool().execute(new Runnable() {
-        @Override
-        public void run() {
-          try {
-            checkAuthorization(args, callbackContext, false); // without autoresolve
-          } catch (Exception ex) {
-            callbackContext.error(ex.getMessage());
-          }
-        }
+      runAsync(authExecutor, callbackContext, () -> {
+        checkAuthorization(args, callbackContext, false); // without autoresolve
       });
       return true;
     } else if ("isAuthorized".equals(action)) {
-      cordova.getThreadPool().execute(new Runnable() {
-        @Override
-        public void run() {
-          try {
-            checkAuthorization(args, callbackContext, false); // without autoresolve
-          } catch (Exception ex) {
-            callbackContext.error(ex.getMessage());
-          }
-        }
+      runAsync(authExecutor, callbackContext, () -> {
+        checkAuthorization(args, callbackContext, false); // without autoresolve
       });
       return true;
     } else if ("disconnect".equals(action)) {
       disconnect(callbackContext);
       return true;
+    } else if ("getCacheStats".equals(action)) {
+      callbackContext.success(queryCache.getStats());
+      return true;
     } else if ("query".equals(action)) {
-      cordova.getThreadPool().execute(new Runnable() {
-        @Override
-        public void run() {
-          try {
-            query(args, callbackContext);
-          } catch (Exception ex) {
-            callbackContext.error(ex.getMessage());
-          }
-        }
-      });
+      runAsync(readExecutor, callbackContext, () -> query(args, callbackContext));
       return true;
     } else if ("queryAggregated".equals(action)) {
-      cordova.getThreadPool().execute(new Runnable() {
-        @Override
-        public void run() {
-          try {
-            queryAggregated(args, callbackContext);
-          } catch (Exception ex) {
-            callbackContext.error(ex.getMessage());
-          }
-        }
-      });
+      runAsync(readExecutor, callbackContext, () -> queryAggregated(args, callbackContext));
+      return true;
+    } else if ("queryMulti".equals(action)) {
+      runAsync(readExecutor, callbackContext, () -> queryMulti(args, callbackContext));
+      return true;
+    } else if ("setWarmUp".equals(action)) {
+      runAsync(readExecutor, callbackContext, () -> setWarmUp(args, callbackContext));
+      return true;
+    } else if ("sync".equals(action)) {
+      runAsync(readExecutor, callbackContext, () -> sync(args, callbackContext));
+      return true;
+    } else if ("queryAggregatedMulti".equals(action)) {
+      runAsync(readExecutor, callbackContext, () -> queryAggregatedMulti(args, callbackContext));
       return true;
     } else if ("store".equals(action)) {
-      cordova.getThreadPool().execute(new Runnable() {
-        @Override
-        public void run() {
-          try {
-            store(args, callbackContext);
-          } catch (Exception ex) {
-            callbackContext.error(ex.getMessage());
-          }
-        }
-      });
+      runAsync(writeExecutor, callbackContext, () -> store(args, callbackContext));
+      return true;
+    } else if ("storeBatch".equals(action)) {
+      runAsync(writeExecutor, callbackContext, () -> storeBatch(args, callbackContext));
       return true;
     } else if ("delete".equals(action)) {
-      cordova.getThreadPool().execute(new Runnable() {
-        @Override
-        public void run() {
-          try {
-            delete(args, callbackContext);
-          } catch (Exception ex) {
-            callbackContext.error(ex.getMessage());
-          }
-        }
-      });
+      runAsync(writeExecutor, callbackContext, () -> delete(args, callbackContext));
+      return true;
+    } else if ("deleteBatch".equals(action)) {
+      runAsync(writeExecutor, callbackContext, () -> deleteBatch(args, callbackContext));
       return true;
     }
 
@@ -342,7 +593,15 @@ public class HealthPlugin extends CordovaPlugin {
     if (this.account != null) {
       Fitness.getConfigClient(this.cordova.getContext(), this.account)
         .disableFit()
-        .addOnSuccessListener(r -> {
+        .addOnSuccessListener(taskExecutor, r -> {
+          // cached data may belong to the disconnected account
+          queryCache.clear();
+          if (bucketStore != null) bucketStore.clear();
+          // so do the sync marks
+          cordova.getContext().getSharedPreferences(SYNC_PREFS, Context.MODE_PRIVATE).edit().clear().apply();
+          synchronized (basalAverages) {
+            basalAverages.clear();
+          }
           callbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, true));
         })
         .addOnFailureListener(err -> {
@@ -410,6 +669,7 @@ public class HealthPlugin extends CordovaPlugin {
     } else {
       // all done!
       authReqCallbackCtx.sendPluginResult(new PluginResult(PluginResult.Status.OK, true));
+      warmUp();
     }
   }
 
@@ -420,6 +680,7 @@ public class HealthPlugin extends CordovaPlugin {
       if (resultCode == Activity.RESULT_OK) {
         Log.i(TAG, "Got authorisation from Google Fit");
         authReqCallbackCtx.sendPluginResult(new PluginResult(PluginResult.Status.OK, true));
+        warmUp();
       } else if (resultCode == Activity.RESULT_CANCELED) {
         // The user cancelled the login dialog before selecting any action.
         authReqCallbackCtx.error("User cancelled the dialog");
@@ -483,359 +744,195 @@ public class HealthPlugin extends CordovaPlugin {
       return;
     }
     String datatype = args.getJSONObject(0).getString("dataType");
-    final DataType dt = datatypes.get(datatype);
-
-    if (dt == null) {
+    if (queryDataType(datatype) == null) {
       callbackContext.error("Datatype " + datatype + " not supported");
       return;
     }
+    String format = args.getJSONObject(0).optString("format", ResultFormat.ROWS);
+    if (!ResultFormat.isSupported(format)) {
+      callbackContext.error("Format " + format + " not supported");
+      return;
+    }
 
     if (this.account == null) {
       callbackContext.error("You must call requestAuthorization() before query()");
       return;
     }
 
-    DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder();
-    readRequestBuilder.setTimeRange(st, et, TimeUnit.MILLISECONDS);
-
-    if (dt.equals(DataType.TYPE_STEP_COUNT_DELTA) && args.getJSONObject(0).has("filtered") && args.getJSONObject(0).getBoolean("filtered")) {
-      // exceptional case for filtered steps
-      DataSource filteredStepsSource = new DataSource.Builder()
-        .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
-        .setType(DataSource.TYPE_DERIVED)
-        .setStreamName("estimated_steps")
-        .setAppPackageName("com.google.android.gms")
-        .build();
-
-      readRequestBuilder.read(filteredStepsSource);
-    } else {
-      readRequestBuilder.read(dt);
-    }
-
+    boolean filtered = args.getJSONObject(0).has("filtered") && args.getJSONObject(0).getBoolean("filtered");
     Integer limit = null;
     if (args.getJSONObject(0).has("limit")) {
       limit = args.getJSONObject(0).getInt("limit");
-      readRequestBuilder.setLimit(limit);
     }
 
-    Task<DataReadResponse> queryTask = Fitness.getHistoryClient(this.cordova.getContext(), this.account)
-      .readData(readRequestBuilder.build());
+    if (args.getJSONObject(0).has("cursor") || args.getJSONObject(0).optBoolean("paginate", false)) {
+      String cursor = args.getJSONObject(0).has("cursor") && !args.getJSONObject(0).isNull("cursor")
+        ? args.getJSONObject(0).getString("cursor") : null;
+      queryPage(datatype, st, et, filtered, limit, cursor, format, callbackContext);
+      return;
+    }
 
-    DataReadResponse response = Tasks.await(queryTask);
-    if (!response.getStatus().isSuccess()) {
-      // abort
-      callbackContext.error(response.getStatus().getStatusMessage());
+    if (args.getJSONObject(0).has("chunkSize")) {
+      // results are sent in chunks as they are converted, without caching them
+      int chunkSize = Math.max(1, args.getJSONObject(0).getInt("chunkSize"));
+      readSharded(Collections.singletonList(datatype), st, et, filtered, limit)
+        .onSuccessTask(taskExecutor, read -> streamChunks(datatype, responsePoints(datatype, read, filtered),
+          read.getBuckets(), read.basalAVG, chunkSize, 0, format, callbackContext))
+        .onSuccessTask(taskExecutor, count -> Tasks.forResult(new JSONObject().put("done", true).put("count", count)))
+        .addOnSuccessListener(taskExecutor, done -> callbackContext.success(done))
+        .addOnFailureListener(taskExecutor, err -> callbackContext.error(err.getMessage()));
       return;
     }
 
-    Log.d(TAG, "Data query successful");
-    JSONArray resultset = new JSONArray();
-    List<DataSet> datasets = response.getDataSets();
-    for (DataSet dataset : datasets) {
-      for (DataPoint datapoint : dataset.getDataPoints()) {
-        JSONObject obj = new JSONObject();
-        obj.put("startDate", datapoint.getStartTime(TimeUnit.MILLISECONDS));
-        obj.put("endDate", datapoint.getEndTime(TimeUnit.MILLISECONDS));
-        DataSource dataSource = datapoint.getOriginalDataSource();
-        if (dataSource != null) {
-          String sourceBundleId = dataSource.getAppPackageName();
-          if (sourceBundleId != null) obj.put("sourceBundleId", sourceBundleId);
-        }
+    // the cache keeps the rows, other formats are encoded from them
+    readQuery(Collections.singletonList(datatype), st, et, filtered, limit)
+      .onSuccessTask(taskExecutor, results -> Tasks.forResult(ResultFormat.encode(results.optJSONArray(datatype), format)))
+      .addOnSuccessListener(taskExecutor, result -> sendResult(callbackContext, result))
+      .addOnFailureListener(taskExecutor, err -> callbackContext.error(err.getMessage()));
+  }
 
-        //reference for fields: https://developers.google.com/android/reference/com/google/android/gms/fitness/data/Field.html
-        if (dt.equals(DataType.TYPE_STEP_COUNT_DELTA)) {
-          int steps = datapoint.getValue(Field.FIELD_STEPS).asInt();
-          obj.put("value", steps);
-          obj.put("unit", "count");
-        } else if (dt.equals(DataType.TYPE_DISTANCE_DELTA)) {
-          float distance = datapoint.getValue(Field.FIELD_DISTANCE).asFloat();
-          obj.put("value", distance);
-          obj.put("unit", "m");
-        } else if (dt.equals(DataType.TYPE_HYDRATION)) {
-          float distance = datapoint.getValue(Field.FIELD_VOLUME).asFloat();
-          obj.put("value", distance);
-          obj.put("unit", "ml");// documentation says it's litres, but from experiments I get ml
-        } else if (dt.equals(DataType.TYPE_NUTRITION)) {
-          if (datatype.equalsIgnoreCase("nutrition")) {
-            JSONObject dob = new JSONObject();
-            if (datapoint.getValue(Field.FIELD_FOOD_ITEM) != null) {
-              dob.put("item", datapoint.getValue(Field.FIELD_FOOD_ITEM).asString());
-            }
-            if (datapoint.getValue(Field.FIELD_MEAL_TYPE) != null) {
-              int mealt = datapoint.getValue(Field.FIELD_MEAL_TYPE).asInt();
-              if (mealt == Field.MEAL_TYPE_BREAKFAST)
-                dob.put("meal_type", "breakfast");
-              else if (mealt == Field.MEAL_TYPE_DINNER)
-                dob.put("meal_type", "dinner");
-              else if (mealt == Field.MEAL_TYPE_LUNCH)
-                dob.put("meal_type", "lunch");
-              else if (mealt == Field.MEAL_TYPE_SNACK)
-                dob.put("meal_type", "snack");
-              else dob.put("meal_type", "unknown");
-            }
-            if (datapoint.getValue(Field.FIELD_NUTRIENTS) != null) {
-              Value v = datapoint.getValue(Field.FIELD_NUTRIENTS);
-              dob.put("nutrients", getNutrients(v, null));
-            }
-            obj.put("value", dob);
-            obj.put("unit", "nutrition");
-          } else {
-            Value nutrients = datapoint.getValue(Field.FIELD_NUTRIENTS);
-            NutrientFieldInfo fieldInfo = nutrientFields.get(datatype);
-            if (fieldInfo != null) {
-              if (nutrients.getKeyValue(fieldInfo.field) != null) {
-                obj.put("value", (float) nutrients.getKeyValue(fieldInfo.field));
-              } else {
-                obj.put("value", 0f);
-              }
-              obj.put("unit", fieldInfo.unit);
-            }
+  // queries one page of datapoints, the result includes a cursor for the next page, or null after the last one
+  // pages cover consecutive time windows, a page is cut earlier if it reaches the limit
+  private void queryPage(String datatype, long st, long et, boolean filtered, Integer limit, String cursor,
+                         String format, final CallbackContext callbackContext) throws JSONException {
+    long pageStart = st;
+    // datapoints starting at pageStart already returned by the previous pages
+    int toSkip = 0;
+    // datapoints already returned that cross pageStart, Google Fit gives them again with pageStart as start
+    final Set<String> crossing = new HashSet<>();
+    if (cursor != null) {
+      JSONObject token;
+      try {
+        token = new JSONObject(new String(Base64.decode(cursor, Base64.URL_SAFE | Base64.NO_WRAP), "UTF-8"));
+      } catch (Exception ex) {
+        callbackContext.error("Invalid cursor");
+        return;
+      }
+      if (!datatype.equals(token.optString("dataType")) || token.optLong("endDate") != et) {
+        callbackContext.error("Cursor does not belong to this query");
+        return;
+      }
+      pageStart = token.getLong("from");
+      toSkip = token.optInt("skip", 0);
+      JSONArray crossed = token.optJSONArray("crossing");
+      for (int i = 0; crossed != null && i < crossed.length(); i++) {
+        crossing.add(crossed.getString(i));
+      }
+    }
+    final long from = pageStart;
+    final long to = Math.min(et, from + pageWindow);
+    final boolean continued = cursor != null;
+    final int skip = toSkip;
+
+    // the whole window is read and the page is cut here: Google Fit would return the latest datapoints
+    // when given a limit, and would apply it to nutrition and water separately
+    readResponse(Collections.singletonList(datatype), from, to, et, filtered, null)
+      .onSuccessTask(taskExecutor, read -> {
+        List<DataPoint> points = new ArrayList<>(responsePoints(datatype, read, filtered));
+        // the same order on every read, so that pages can be resumed by position
+        Collections.sort(points, (x, y) -> {
+          int cmp = Long.compare(x.getStartTime(TimeUnit.MILLISECONDS), y.getStartTime(TimeUnit.MILLISECONDS));
+          if (cmp == 0) cmp = Long.compare(x.getEndTime(TimeUnit.MILLISECONDS), y.getEndTime(TimeUnit.MILLISECONDS));
+          return cmp != 0 ? cmp : streamOf(x).compareTo(streamOf(y));
+        });
+        List<DataPoint> page = new ArrayList<>();
+        List<DataPoint> returned = new ArrayList<>();
+        int skipped = 0;
+        boolean cut = false;
+        for (DataPoint datapoint : points) {
+          long pst = datapoint.getStartTime(TimeUnit.MILLISECONDS);
+          // datapoints are assigned to the window where they start
+          if (continued && pst < from) continue;
+          if (to < et && pst >= to) continue;
+          if (pst == from && crossing.contains(identityOf(datapoint))) {
+            // returned by a previous page with its actual start
+            returned.add(datapoint);
+            continue;
           }
-        } else if (dt.equals(DataType.TYPE_CALORIES_EXPENDED)) {
-          float calories = datapoint.getValue(Field.FIELD_CALORIES).asFloat();
-          obj.put("value", calories);
-          obj.put("unit", "kcal");
-        } else if (dt.equals(DataType.TYPE_BASAL_METABOLIC_RATE)) {
-          float calories = datapoint.getValue(Field.FIELD_CALORIES).asFloat();
-          obj.put("value", calories);
-          obj.put("unit", "kcal");
-        } else if (dt.equals(DataType.TYPE_HEIGHT)) {
-          float height = datapoint.getValue(Field.FIELD_HEIGHT).asFloat();
-          obj.put("value", height);
-          obj.put("unit", "m");
-        } else if (dt.equals(DataType.TYPE_WEIGHT)) {
-          float weight = datapoint.getValue(Field.FIELD_WEIGHT).asFloat();
-          obj.put("value", weight);
-          obj.put("unit", "kg");
-        } else if (dt.equals(DataType.TYPE_HEART_RATE_BPM)) {
-          float weight = datapoint.getValue(Field.FIELD_BPM).asFloat();
-          obj.put("value", weight);
-          obj.put("unit", "bpm");
-        } else if (dt.equals(DataType.TYPE_BODY_FAT_PERCENTAGE)) {
-          float weight = datapoint.getValue(Field.FIELD_PERCENTAGE).asFloat();
-          obj.put("value", weight);
-          obj.put("unit", "percent");
-        } else if (dt.equals(DataType.TYPE_ACTIVITY_SEGMENT)) {
-          String activity = datapoint.getValue(Field.FIELD_ACTIVITY).asActivity();
-          obj.put("value", activity);
-          obj.put("unit", "activityType");
-
-          //extra queries to get calorie and distance records related to the activity times
-          DataReadRequest.Builder readActivityRequestBuilder = new DataReadRequest.Builder();
-          readActivityRequestBuilder.setTimeRange(datapoint.getStartTime(TimeUnit.MILLISECONDS), datapoint.getEndTime(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
-            .read(DataType.TYPE_DISTANCE_DELTA)
-            .read(DataType.TYPE_CALORIES_EXPENDED);
-
-          Task<DataReadResponse> activityTask = Fitness.getHistoryClient(this.cordova.getContext(), this.account)
-            .readData(readActivityRequestBuilder.build());
-          // Active wait. This is not very efficient, but otherwise the code would become hard to structure
-          DataReadResponse dataReadActivityResult = Tasks.await(activityTask);
-
-          if (!dataReadActivityResult.getStatus().isSuccess()) {
-            // abort
-            callbackContext.error(dataReadActivityResult.getStatus().getStatusMessage());
-            return;
+          if (pst == from && skipped < skip) {
+            skipped++;
+            continue;
           }
-
-          float totaldistance = 0;
-          float totalcalories = 0;
-
-          List<DataSet> dataActivitySets = dataReadActivityResult.getDataSets();
-          for (DataSet dataActivitySet : dataActivitySets) {
-            for (DataPoint dataActivityPoint : dataActivitySet.getDataPoints()) {
-              if (dataActivitySet.getDataType().equals(DataType.TYPE_DISTANCE_DELTA)) {
-                float distance = dataActivityPoint.getValue(Field.FIELD_DISTANCE).asFloat();
-                totaldistance += distance;
-              } else {
-                float calories = dataActivityPoint.getValue(Field.FIELD_CALORIES).asFloat();
-                totalcalories += calories;
-              }
-            }
+          if (limit != null && page.size() >= Math.max(1, limit)) {
+            cut = true;
+            break;
           }
-          obj.put("distance", totaldistance);
-          obj.put("calories", totalcalories);
-        }  else if (dt.equals(HealthDataTypes.TYPE_OXYGEN_SATURATION)) {
-          float oxysat = datapoint.getValue(HealthFields.FIELD_OXYGEN_SATURATION).asFloat();
-          obj.put("value", oxysat);
-          obj.put("unit", "%");
-        }  else if (dt.equals(HealthDataTypes.TYPE_BLOOD_GLUCOSE)) {
-          JSONObject glucob = new JSONObject();
-          float glucose = datapoint.getValue(HealthFields.FIELD_BLOOD_GLUCOSE_LEVEL).asFloat();
-          glucob.put("glucose", glucose);
-          if (datapoint.getValue(HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL).isSet() &&
-            datapoint.getValue(Field.FIELD_MEAL_TYPE).isSet()) {
-            int temp_to_meal = datapoint.getValue(HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL).asInt();
-            String meal = "";
-            if (temp_to_meal == HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_AFTER_MEAL) {
-              meal = "after_";
-            } else if (temp_to_meal == HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_BEFORE_MEAL) {
-              meal = "before_";
-            } else if (temp_to_meal == HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_FASTING) {
-              meal = "fasting";
-            } else if (temp_to_meal == HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_GENERAL) {
-              meal = "";
-            }
-            if (temp_to_meal != HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_FASTING) {
-              switch (datapoint.getValue(Field.FIELD_MEAL_TYPE).asInt()) {
-                case Field.MEAL_TYPE_BREAKFAST:
-                  meal += "breakfast";
-                  break;
-                case Field.MEAL_TYPE_DINNER:
-                  meal += "dinner";
-                  break;
-                case Field.MEAL_TYPE_LUNCH:
-                  meal += "lunch";
-                  break;
-                case Field.MEAL_TYPE_SNACK:
-                  meal += "snack";
-                  break;
-                default:
-                  meal = "unknown";
-              }
-            }
-            glucob.put("meal", meal);
+          page.add(datapoint);
+        }
+
+        JSONObject next = null;
+        if (cut) {
+          // the window has more datapoints, continue from the start of the last one returned
+          long nextStart = page.get(page.size() - 1).getStartTime(TimeUnit.MILLISECONDS);
+          int nextSkip = nextStart == from ? skipped : 0;
+          for (DataPoint datapoint : page) {
+            if (datapoint.getStartTime(TimeUnit.MILLISECONDS) == nextStart) nextSkip++;
           }
-          if (datapoint.getValue(HealthFields.FIELD_TEMPORAL_RELATION_TO_SLEEP).isSet()) {
-            String sleep = "";
-            switch (datapoint.getValue(HealthFields.FIELD_TEMPORAL_RELATION_TO_SLEEP).asInt()) {
-              case HealthFields.TEMPORAL_RELATION_TO_SLEEP_BEFORE_SLEEP:
-                sleep = "before_sleep";
-                break;
-              case HealthFields.TEMPORAL_RELATION_TO_SLEEP_DURING_SLEEP:
-                sleep = "during_sleep";
-                break;
-              case HealthFields.TEMPORAL_RELATION_TO_SLEEP_FULLY_AWAKE:
-                sleep = "fully_awake";
-                break;
-              case HealthFields.TEMPORAL_RELATION_TO_SLEEP_ON_WAKING:
-                sleep = "on_waking";
-                break;
-            }
-            glucob.put("sleep", sleep);
+          next = new JSONObject();
+          next.put("from", nextStart);
+          next.put("skip", nextSkip);
+        } else if (to < et) {
+          next = new JSONObject();
+          next.put("from", to);
+        }
+        final String nextCursor;
+        if (next != null) {
+          long nextFrom = next.getLong("from");
+          JSONArray nextCrossing = new JSONArray();
+          for (DataPoint datapoint : returned) {
+            if (datapoint.getEndTime(TimeUnit.MILLISECONDS) > nextFrom) nextCrossing.put(identityOf(datapoint));
           }
-          if (datapoint.getValue(HealthFields.FIELD_BLOOD_GLUCOSE_SPECIMEN_SOURCE).isSet()) {
-            String source = "";
-            switch (datapoint.getValue(HealthFields.FIELD_BLOOD_GLUCOSE_SPECIMEN_SOURCE).asInt()) {
-              case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_CAPILLARY_BLOOD:
-                source = "capillary_blood";
-                break;
-              case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_INTERSTITIAL_FLUID:
-                source = "interstitial_fluid";
-                break;
-              case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_PLASMA:
-                source = "plasma";
-                break;
-              case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_SERUM:
-                source = "serum";
-                break;
-              case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_TEARS:
-                source = "tears";
-                break;
-              case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_WHOLE_BLOOD:
-                source = "whole_blood";
-                break;
+          for (DataPoint datapoint : page) {
+            if (datapoint.getStartTime(TimeUnit.MILLISECONDS) < nextFrom && datapoint.getEndTime(TimeUnit.MILLISECONDS) > nextFrom) {
+              nextCrossing.put(identityOf(datapoint));
             }
-            glucob.put("source", source);
-          }
-          obj.put("value", glucob);
-          obj.put("unit", "mmol/L");
-        } else if (dt.equals(HealthDataTypes.TYPE_BLOOD_PRESSURE)) {
-          JSONObject bpobj = new JSONObject();
-          if (datapoint.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC).isSet()) {
-            float systolic = datapoint.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC).asFloat();
-            bpobj.put("systolic", systolic);
-          }
-          if (datapoint.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC).isSet()) {
-            float diastolic = datapoint.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC).asFloat();
-            bpobj.put("diastolic", diastolic);
-          }
-          obj.put("value", bpobj);
-          obj.put("unit", "mmHg");
-        }  else if (dt.equals(DataType.TYPE_SLEEP_SEGMENT)) {
-          String sleepSegmentType = "";
-          switch (datapoint.getValue(Field.FIELD_SLEEP_SEGMENT_TYPE).asInt()) {
-            case SleepStages.AWAKE:
-              sleepSegmentType = "sleep.awake";
-              break;
-            case SleepStages.SLEEP:
-              sleepSegmentType = "sleep";
-              break;
-            case SleepStages.OUT_OF_BED:
-              sleepSegmentType = "sleep.outOfBed";
-              break;
-            case SleepStages.SLEEP_LIGHT:
-              sleepSegmentType = "sleep.light";
-              break;
-            case SleepStages.SLEEP_DEEP:
-              sleepSegmentType = "sleep.deep";
-              break;
-            case SleepStages.SLEEP_REM:
-              sleepSegmentType = "sleep.rem";
-              break;
           }
-          obj.put("value", sleepSegmentType);
-          obj.put("unit", "sleepSegmentType");
+          if (nextCrossing.length() > 0) next.put("crossing", nextCrossing);
+          next.put("dataType", datatype);
+          next.put("endDate", et);
+          nextCursor = Base64.encodeToString(next.toString().getBytes("UTF-8"), Base64.URL_SAFE | Base64.NO_WRAP);
+        } else {
+          nextCursor = null;
         }
-        resultset.put(obj);
-      }
-    }
-    callbackContext.success(resultset);
-
-
+        return pointsToJSON(datatype, page, read.getBuckets(), read.basalAVG)
+          .onSuccessTask(taskExecutor, data -> {
+            JSONObject result = new JSONObject();
+            result.put("data", ResultFormat.encode(data, format));
+            result.put("cursor", nextCursor != null ? nextCursor : JSONObject.NULL);
+            return Tasks.forResult(result);
+          });
+      })
+      .addOnSuccessListener(taskExecutor, result -> callbackContext.success(result))
+      .addOnFailureListener(taskExecutor, err -> callbackContext.error(err.getMessage()));
   }
 
-  // utility function, gets nutrients from a Value and merges the value inside a json object
-  private JSONObject getNutrients(Value nutrientsMap, JSONObject mergewith) throws JSONException {
-    JSONObject nutrients;
-    if (mergewith != null) {
-      nutrients = mergewith;
-    } else {
-      nutrients = new JSONObject();
-    }
-    mergeNutrient(Field.NUTRIENT_CALORIES, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_TOTAL_FAT, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_SATURATED_FAT, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_UNSATURATED_FAT, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_POLYUNSATURATED_FAT, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_MONOUNSATURATED_FAT, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_TRANS_FAT, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_CHOLESTEROL, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_SODIUM, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_POTASSIUM, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_TOTAL_CARBS, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_DIETARY_FIBER, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_SUGAR, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_PROTEIN, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_VITAMIN_A, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_VITAMIN_C, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_CALCIUM, nutrientsMap, nutrients);
-    mergeNutrient(Field.NUTRIENT_IRON, nutrientsMap, nutrients);
-
-    return nutrients;
+  // identifies the stream a datapoint belongs to
+  private static String streamOf(DataPoint datapoint) {
+    DataSource source = datapoint.getDataSource();
+    return source != null && source.getStreamIdentifier() != null ? source.getStreamIdentifier() : "";
   }
 
-  // utility function, merges a nutrient in an json object
-  private void mergeNutrient(String f, Value nutrientsMap, JSONObject nutrients) throws JSONException {
-    if (nutrientsMap.getKeyValue(f) != null) {
-      String n = null;
-      for (String name : nutrientFields.keySet()) {
-        if (nutrientFields.get(name).field.equalsIgnoreCase(f)) {
-          n = name;
-          break;
-        }
-      }
-      if (n != null) {
-        float val = nutrientsMap.getKeyValue(f);
-        if (nutrients.has(n)) {
-          val += nutrients.getDouble(n);
-        }
-        nutrients.put(n, val);
-      }
+  // identifies a datapoint by its stream, end and stored values, which Google Fit keeps
+  // when it returns the datapoint with its start moved to that of a read starting later
+  private static String identityOf(DataPoint datapoint) {
+    StringBuilder id = new StringBuilder(streamOf(datapoint))
+      .append('|').append(datapoint.getEndTime(TimeUnit.MILLISECONDS));
+    for (Field field : datapoint.getDataType().getFields()) {
+      id.append('|').append(datapoint.getValue(field));
     }
+    return id.toString();
   }
 
-  // queries and aggregates data
-  private void queryAggregated(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+  // fingerprint of the identity of a datapoint, which leaves out its start, truncated by reads starting later,
+  // and anything derived from other data such as the distance and calories of activities
+  // SHA-1 is used so that a new datapoint is not taken for one already seen
+  private static String fingerprintOf(DataPoint datapoint) throws Exception {
+    byte[] digest = MessageDigest.getInstance("SHA-1").digest(identityOf(datapoint).getBytes("UTF-8"));
+    return Base64.encodeToString(digest, Base64.NO_WRAP);
+  }
+
+  // queries for datapoints of several data types at once
+  private void queryMulti(final JSONArray args, final CallbackContext callbackContext) throws Exception {
     if (!args.getJSONObject(0).has("startDate")) {
       callbackContext.error("Missing argument startDate");
       return;
@@ -846,324 +943,1672 @@ public class HealthPlugin extends CordovaPlugin {
       return;
     }
     long et = args.getJSONObject(0).getLong("endDate");
-    long _et = et; // keep track of the original end time, needed for basal calories
-    if (!args.getJSONObject(0).has("dataType")) {
-      callbackContext.error("Missing argument dataType");
+    if (!args.getJSONObject(0).has("dataTypes")) {
+      callbackContext.error("Missing argument dataTypes");
       return;
     }
-    String datatype = args.getJSONObject(0).getString("dataType");
-
-    boolean hasbucket = args.getJSONObject(0).has("bucket");
-    boolean customBucket = false;
-    String bucketType = "";
-    if (hasbucket) {
-      bucketType = args.getJSONObject(0).getString("bucket");
-      if (!bucketType.equalsIgnoreCase("hour") && !bucketType.equalsIgnoreCase("day")) {
-        customBucket = true;
-        if (!bucketType.equalsIgnoreCase("week") && !bucketType.equalsIgnoreCase("month") && !bucketType.equalsIgnoreCase("year")) {
-          // error
-          callbackContext.error("Bucket type " + bucketType + " not recognised");
-          return;
-        }
-      }
-      // Google fit bucketing is different and start and end must be quantised
-      Calendar c = Calendar.getInstance();
-
-      c.setTimeInMillis(st);
-      c.clear(Calendar.MINUTE);
-      c.clear(Calendar.SECOND);
-      c.clear(Calendar.MILLISECOND);
-      if (!bucketType.equalsIgnoreCase("hour")) {
-        c.set(Calendar.HOUR_OF_DAY, 0);
-        if (bucketType.equalsIgnoreCase("week")) {
-          c.set(Calendar.DAY_OF_WEEK, c.getFirstDayOfWeek());
-        } else if (bucketType.equalsIgnoreCase("month")) {
-          c.set(Calendar.DAY_OF_MONTH, 1);
-        } else if (bucketType.equalsIgnoreCase("year")) {
-          c.set(Calendar.DAY_OF_YEAR, 1);
-        }
+    JSONArray dataTypes = args.getJSONObject(0).getJSONArray("dataTypes");
+    List<String> types = new ArrayList<>();
+    for (int i = 0; i < dataTypes.length(); i++) {
+      String datatype = dataTypes.getString(i);
+      if (queryDataType(datatype) == null) {
+        callbackContext.error("Datatype " + datatype + " not supported");
+        return;
       }
-      st = c.getTimeInMillis();
+      if (!types.contains(datatype)) types.add(datatype);
+    }
+    if (types.isEmpty()) {
+      callbackContext.error("Missing argument dataTypes");
+      return;
+    }
+    String format = args.getJSONObject(0).optString("format", ResultFormat.ROWS);
+    if (!ResultFormat.isSupported(format)) {
+      callbackContext.error("Format " + format + " not supported");
+      return;
+    }
 
-      c.setTimeInMillis(et);
-      c.clear(Calendar.MINUTE);
-      c.clear(Calendar.SECOND);
-      c.clear(Calendar.MILLISECOND);
-      if (bucketType.equalsIgnoreCase("hour")) {
-        c.add(Calendar.HOUR_OF_DAY, 1);
-      } else {
-        c.set(Calendar.HOUR_OF_DAY, 0);
-        if (bucketType.equalsIgnoreCase("day")) {
-          c.add(Calendar.DAY_OF_YEAR, 1);
-        } else if (bucketType.equalsIgnoreCase("week")) {
-          c.add(Calendar.DAY_OF_YEAR, 7);
-        } else if (bucketType.equalsIgnoreCase("month")) {
-          c.add(Calendar.MONTH, 1);
-        } else if (bucketType.equalsIgnoreCase("year")) {
-          c.add(Calendar.YEAR, 1);
-        }
-      }
-      et = c.getTimeInMillis();
+    if (this.account == null) {
+      callbackContext.error("You must call requestAuthorization() before queryMulti()");
+      return;
     }
 
-    // basal metabolic rate is treated in a different way
-    // we need to query per day and not all days may have a sample
-    // so we query over a week then we take the average
-    float basalAVG = 0;
-    if (datatype.equalsIgnoreCase("calories.basal")) {
-      try {
-        basalAVG = getBasalAVG(_et);
-      } catch (Exception ex) {
-        callbackContext.error(ex.getMessage());
-        return;
-      }
+    boolean filtered = args.getJSONObject(0).has("filtered") && args.getJSONObject(0).getBoolean("filtered");
+    Integer limit = null;
+    if (args.getJSONObject(0).has("limit")) {
+      limit = args.getJSONObject(0).getInt("limit");
     }
 
-    DataReadRequest.Builder builder = new DataReadRequest.Builder();
-    builder.setTimeRange(st, et, TimeUnit.MILLISECONDS);
+    readQuery(types, st, et, filtered, limit)
+      .onSuccessTask(taskExecutor, results -> {
+        for (String datatype : types) {
+          results.put(datatype, ResultFormat.encode(results.getJSONArray(datatype), format));
+        }
+        return Tasks.forResult(results);
+      })
+      .addOnSuccessListener(taskExecutor, results -> callbackContext.success(results))
+      .addOnFailureListener(taskExecutor, err -> callbackContext.error(err.getMessage()));
+  }
 
-    if (datatype.equalsIgnoreCase("steps")) {
-      if (args.getJSONObject(0).has("filtered") && args.getJSONObject(0).getBoolean("filtered")) {
-        // exceptional case for filtered steps
-        DataSource filteredStepsSource = new DataSource.Builder()
-          .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
-          .setType(DataSource.TYPE_DERIVED)
-          .setStreamName("estimated_steps")
-          .setAppPackageName("com.google.android.gms")
-          .build();
-        builder.aggregate(filteredStepsSource, DataType.AGGREGATE_STEP_COUNT_DELTA);
-      } else {
-        builder.aggregate(DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA);
-      }
-    } else if (datatype.equalsIgnoreCase("distance")) {
-      builder.aggregate(DataType.TYPE_DISTANCE_DELTA);
-    } else if (datatype.equalsIgnoreCase("calories")) {
-      builder.aggregate(DataType.TYPE_CALORIES_EXPENDED);
-    } else if (datatype.equalsIgnoreCase("calories.basal")) {
-      builder.aggregate(DataType.TYPE_BASAL_METABOLIC_RATE);
-    } else if (datatype.equalsIgnoreCase("activity")) {
-      builder.aggregate(DataType.TYPE_ACTIVITY_SEGMENT);
-    } else if (datatype.equalsIgnoreCase("nutrition.water")) {
-      builder.aggregate(DataType.TYPE_HYDRATION);
-    } else if (datatype.startsWith("nutrition")) {
-      builder.aggregate(DataType.TYPE_NUTRITION);
-    } else {
+  // gets the data points stored or changed since the previous sync of the same data type
+  // the end of the last data point seen is kept, together with the fingerprints of those close to it
+  // the new state is pending until the next call gives back its mark, so data not received by the app is read again
+  private void sync(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+    if (!args.getJSONObject(0).has("dataType")) {
+      callbackContext.error("Missing argument dataType");
+      return;
+    }
+    String datatype = args.getJSONObject(0).getString("dataType");
+    if (queryDataType(datatype) == null) {
       callbackContext.error("Datatype " + datatype + " not supported");
       return;
     }
 
-    if (hasbucket) {
-      if (bucketType.equalsIgnoreCase("hour")) {
-        builder.bucketByTime(1, TimeUnit.HOURS);
-      } else if (bucketType.equalsIgnoreCase("day")) {
-        builder.bucketByTime(1, TimeUnit.DAYS);
-      } else {
-        // use days, then will need to aggregate manually
-        builder.bucketByTime(1, TimeUnit.DAYS);
-      }
-    } else {
-      if (datatype.equalsIgnoreCase("activity")) {
-        builder.bucketByActivityType(1, TimeUnit.MILLISECONDS);
-      } else {
-        long allms = et - st;
-        if (allms <= Integer.MAX_VALUE) {
-          builder.bucketByTime((int) allms, TimeUnit.MILLISECONDS);
-        } else {
-          builder.bucketByTime((int) (allms / 1000), TimeUnit.SECONDS);
-        }
-      }
+    if (this.account == null) {
+      callbackContext.error("You must call requestAuthorization() before sync()");
+      return;
     }
 
-    DataReadRequest readRequest = builder.build();
-    Task<DataReadResponse> task = Fitness.getHistoryClient(this.cordova.getContext(), this.account)
-      .readData(readRequest);
+    boolean filtered = args.getJSONObject(0).has("filtered") && args.getJSONObject(0).getBoolean("filtered");
+    final String key = datatype + "|" + filtered;
+    final String pendingKey = key + "|pending";
+    final SharedPreferences prefs = cordova.getContext().getSharedPreferences(SYNC_PREFS, Context.MODE_PRIVATE);
+    if (args.getJSONObject(0).optBoolean("reset", false)) {
+      prefs.edit().remove(key).remove(pendingKey).apply();
+    } else if (prefs.contains(pendingKey)) {
+      // the previous result has been received only if its mark is given back
+      String pending = prefs.getString(pendingKey, null);
+      SharedPreferences.Editor editor = prefs.edit().remove(pendingKey);
+      if (args.getJSONObject(0).has("mark") && args.getJSONObject(0).getLong("mark") == new JSONObject(pending).getLong("mark")) {
+        editor.putString(key, pending);
+      }
+      editor.apply();
+    }
 
-    try {
-      DataReadResponse dataReadResult = Tasks.await(task);
-      if (!dataReadResult.getStatus().isSuccess()) {
-        callbackContext.error(dataReadResult.getStatus().getStatusMessage());
-        return;
+    long st;
+    final long previousMark;
+    final Set<String> seen = new HashSet<>();
+    if (prefs.contains(key)) {
+      JSONObject state = new JSONObject(prefs.getString(key, null));
+      previousMark = state.getLong("mark");
+      st = previousMark - syncOverlap;
+      JSONArray fingerprints = state.getJSONArray("seen");
+      for (int i = 0; i < fingerprints.length(); i++) {
+        seen.add(fingerprints.optString(i));
       }
-      Log.d(TAG, "Got data from query aggregated");
-      JSONObject retBucket = null;
-      JSONArray retBucketsArr = new JSONArray();
-      if (hasbucket) {
-        if (customBucket) {
-          // create custom buckets, as these are not supported by Google Fit
-          Calendar cal = Calendar.getInstance();
-          cal.setTimeInMillis(st);
-          while (cal.getTimeInMillis() < et) {
-            JSONObject customBuck = new JSONObject();
-            customBuck.put("startDate", cal.getTimeInMillis());
-            if (bucketType.equalsIgnoreCase("week")) {
-              cal.add(Calendar.DAY_OF_YEAR, 7);
-            } else if (bucketType.equalsIgnoreCase("month")) {
-              cal.add(Calendar.MONTH, 1);
-            } else {
-              cal.add(Calendar.YEAR, 1);
+    } else if (args.getJSONObject(0).has("startDate")) {
+      // first sync
+      st = args.getJSONObject(0).getLong("startDate");
+      previousMark = st;
+    } else {
+      callbackContext.error("Missing argument startDate");
+      return;
+    }
+    long et = System.currentTimeMillis();
+
+    readSharded(Collections.singletonList(datatype), st, et, filtered, null)
+      .onSuccessTask(taskExecutor, read -> {
+        List<DataPoint> points = responsePoints(datatype, read, filtered);
+        return pointsToJSON(datatype, points, read.getBuckets(), read.basalAVG)
+          .onSuccessTask(taskExecutor, all -> {
+            // a changed data point has a different fingerprint and is returned again
+            String[] fingerprints = new String[all.length()];
+            long mark = previousMark;
+            for (int i = 0; i < all.length(); i++) {
+              fingerprints[i] = fingerprintOf(points.get(i));
+              mark = Math.max(mark, all.getJSONObject(i).getLong("endDate"));
             }
-            customBuck.put("endDate", cal.getTimeInMillis());
-            retBucketsArr.put(customBuck);
-          }
-        }
-      } else {
-        //there will be only one bucket spanning all the period
-        retBucket = new JSONObject();
-        retBucket.put("startDate", st);
-        retBucket.put("endDate", et);
-        retBucket.put("value", 0);
-        if (datatype.equalsIgnoreCase("steps")) {
-          retBucket.put("unit", "count");
-        } else if (datatype.equalsIgnoreCase("distance")) {
-          retBucket.put("unit", "m");
-        } else if (datatype.equalsIgnoreCase("calories")) {
-          retBucket.put("unit", "kcal");
-        } else if (datatype.equalsIgnoreCase("activity")) {
-          retBucket.put("unit", "activitySummary");
-          // query per bucket time to get distance and calories per activity
-          JSONObject actobj = getAggregatedActivityDistanceCalories(st, et);
-          retBucket.put("value", actobj);
-        } else if (datatype.equalsIgnoreCase("nutrition.water")) {
-          retBucket.put("unit", "ml");
-        } else if (datatype.equalsIgnoreCase("nutrition")) {
-          retBucket.put("value", new JSONObject());
-          retBucket.put("unit", "nutrition");
-        } else if (datatype.startsWith("nutrition.")) {
-          retBucket.put("unit", nutrientFields.get(datatype).unit);
+            JSONArray data = new JSONArray();
+            JSONArray nextSeen = new JSONArray();
+            for (int i = 0; i < all.length(); i++) {
+              if (!seen.contains(fingerprints[i])) data.put(all.getJSONObject(i));
+              // data points that will be read again at the next sync
+              if (all.getJSONObject(i).getLong("endDate") >= mark - syncOverlap) nextSeen.put(fingerprints[i]);
+            }
+            JSONObject state = new JSONObject();
+            state.put("mark", mark);
+            state.put("seen", nextSeen);
+            prefs.edit().putString(pendingKey, state.toString()).apply();
+
+            JSONObject result = new JSONObject();
+            result.put("data", data);
+            result.put("mark", mark);
+            return Tasks.forResult(result);
+          });
+      })
+      .addOnSuccessListener(taskExecutor, result -> callbackContext.success(result))
+      .addOnFailureListener(taskExecutor, err -> callbackContext.error(err.getMessage()));
+  }
+
+  // Google Fit data type read for a data type, null if not supported
+  private static DataType queryDataType(String datatype) {
+    // active calories are the total calories minus the basal ones
+    if (datatype.equalsIgnoreCase("calories.active")) return DataType.TYPE_CALORIES_EXPENDED;
+    return datatypes.get(datatype);
+  }
+
+  private static String queryCacheKey(String datatype, long st, long et, boolean filtered, Integer limit) {
+    return "query|" + datatype + "|" + st + "|" + et + "|" + filtered + "|" + limit;
+  }
+
+  // steps as estimated by Google Fit, the same shown in the Google Fit app
+  private static DataSource filteredStepsSource() {
+    return new DataSource.Builder()
+      .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
+      .setType(DataSource.TYPE_DERIVED)
+      .setStreamName("estimated_steps")
+      .setAppPackageName("com.google.android.gms")
+      .build();
+  }
+
+  // Helper class used for storing the read responses of consecutive time windows
+  // together with the basal average needed to decode them
+  private static class QueryResponse {
+    public final List<DataReadResponse> responses = new ArrayList<>();
+    public final List<long[]> windows = new ArrayList<>();
+    // daily buckets of the basal metabolic rate, only read for active calories
+    public final List<Bucket> basalDays = new ArrayList<>();
+    public float basalAVG;
+
+    public QueryResponse(DataReadResponse response, List<Bucket> basalDays, long st, long et, float basalAVG) {
+      this.responses.add(response);
+      this.basalDays.addAll(basalDays);
+      this.windows.add(new long[]{st, et});
+      this.basalAVG = basalAVG;
+    }
+
+    // joins the responses of consecutive windows, in time order
+    public static QueryResponse join(List<QueryResponse> shards) {
+      QueryResponse joined = shards.get(0);
+      for (int i = 1; i < shards.size(); i++) {
+        joined.responses.addAll(shards.get(i).responses);
+        joined.windows.addAll(shards.get(i).windows);
+        joined.basalDays.addAll(shards.get(i).basalDays);
+      }
+      return joined;
+    }
+
+    // daily buckets of the basal metabolic rate of all the windows
+    public List<Bucket> getBuckets() {
+      return basalDays;
+    }
+  }
+
+  // reads the datapoints of the given data types with a single request, the results are keyed by data type
+  private Task<JSONObject> readQuery(List<String> types, long st, long et, boolean filtered, Integer limit) throws JSONException {
+    return readShared(types, datatype -> queryCacheKey(datatype, st, et, filtered, limit),
+      toRead -> readQueryTypes(toRead, st, et, filtered, limit));
+  }
+
+  // reads the datapoints of the given data types from Google Fit, and caches the results
+  private Task<JSONObject> readQueryTypes(List<String> toRead, long st, long et, boolean filtered, Integer limit) throws JSONException {
+    final JSONObject results = new JSONObject();
+    final long cacheGeneration = queryCache.generation();
+
+    return readSharded(toRead, st, et, filtered, limit)
+      .onSuccessTask(taskExecutor, read -> {
+        List<Task<JSONArray>> resultsets = new ArrayList<>();
+        for (String datatype : toRead) {
+          resultsets.add(pointsToJSON(datatype, responsePoints(datatype, read, filtered), read.getBuckets(), read.basalAVG));
+        }
+        return Tasks.<JSONArray>whenAllSuccess(resultsets);
+      })
+      .onSuccessTask(taskExecutor, resultsets -> {
+        for (int i = 0; i < toRead.size(); i++) {
+          String datatype = toRead.get(i);
+          queryCache.put(queryCacheKey(datatype, st, et, filtered, limit), cacheGeneration, resultsets.get(i), dependencies(datatype), st, et);
+          results.put(datatype, resultsets.get(i));
+        }
+        return Tasks.forResult(results);
+      });
+  }
+
+  // reads the given data types, long time ranges are split into windows read in parallel
+  // the limit applies to the whole range, so when given the range is read at once
+  private Task<QueryResponse> readSharded(final List<String> toRead, long st, long et, final boolean filtered, Integer limit) {
+    if (limit != null || et - st <= shardWindow) {
+      return readResponse(toRead, st, et, et, filtered, limit);
+    }
+    List<Callable<Task<QueryResponse>>> shards = new ArrayList<>();
+    for (long from = st; from < et; from += shardWindow) {
+      final long shardSt = from;
+      final long shardEt = Math.min(et, from + shardWindow);
+      shards.add(() -> withRetry(() -> readResponse(toRead, shardSt, shardEt, et, filtered, null), SHARD_ATTEMPTS));
+    }
+    return whenAllBounded(shards, shardParallelism)
+      .onSuccessTask(taskExecutor, reads -> Tasks.forResult(QueryResponse.join(reads)));
+  }
+
+  // runs the task created by the factory again if it fails, up to the given number of attempts
+  private <T> Task<T> withRetry(final Callable<Task<T>> factory, final int attempts) throws Exception {
+    return factory.call().continueWithTask(taskExecutor, task -> {
+      if (task.isSuccessful() || attempts <= 1) return task;
+      Log.w(TAG, "Read failed, trying again", task.getException());
+      return withRetry(factory, attempts - 1);
+    });
+  }
+
+  // reads the given data types with a single request to Google Fit
+  // basalEt is the end time of the whole query, whose basal average is used for active calories
+  private Task<QueryResponse> readResponse(List<String> toRead, long st, long et, long basalEt, boolean filtered, Integer limit) {
+    DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder();
+    readRequestBuilder.setTimeRange(st, et, TimeUnit.MILLISECONDS);
+
+    // different data types can share the same Google Fit data type, which is read once
+    Set<DataType> readTypes = new LinkedHashSet<>();
+    boolean activeCalories = false;
+    for (String datatype : toRead) {
+      DataType dt = queryDataType(datatype);
+      if (dt.equals(DataType.TYPE_STEP_COUNT_DELTA) && filtered) {
+        // exceptional case for filtered steps
+        readRequestBuilder.read(filteredStepsSource());
+      } else {
+        readTypes.add(dt);
+      }
+      if (datatype.equalsIgnoreCase("nutrition")) {
+        // nutrition includes water, which is read in the same request
+        readTypes.add(DataType.TYPE_HYDRATION);
+      }
+      activeCalories |= datatype.equalsIgnoreCase("calories.active");
+    }
+    for (DataType dt : readTypes) {
+      readRequestBuilder.read(dt);
+    }
+
+    if (limit != null) {
+      readRequestBuilder.setLimit(limit);
+    }
+
+    Task<Float> basalTask;
+    final Task<List<Bucket>> basalDaysTask;
+    if (activeCalories) {
+      // daily basal metabolic rate is read with its own request, so that the raw read is neither bucketed nor limited with it
+      // days without it use the weekly average
+      DataReadRequest basalRequest = new DataReadRequest.Builder()
+        .aggregate(DataType.TYPE_BASAL_METABOLIC_RATE)
+        .bucketByTime(1, TimeUnit.DAYS)
+        .setTimeRange(st, et, TimeUnit.MILLISECONDS)
+        .build();
+      basalDaysTask = Fitness.getHistoryClient(this.cordova.getContext(), this.account)
+        .readData(basalRequest)
+        .onSuccessTask(taskExecutor, response -> {
+          if (!response.getStatus().isSuccess()) {
+            throw new Exception(response.getStatus().getStatusMessage());
+          }
+          return Tasks.forResult(response.getBuckets());
+        });
+      basalTask = getBasalAVG(basalEt);
+    } else {
+      basalDaysTask = Tasks.forResult(Collections.<Bucket>emptyList());
+      basalTask = Tasks.forResult(0f);
+    }
+
+    final Task<DataReadResponse> readTask = Fitness.getHistoryClient(this.cordova.getContext(), this.account)
+      .readData(readRequestBuilder.build());
+
+    return basalTask
+      .onSuccessTask(taskExecutor, basalAVG -> readTask.onSuccessTask(taskExecutor, response -> {
+        if (!response.getStatus().isSuccess()) {
+          // abort
+          throw new Exception(response.getStatus().getStatusMessage());
+        }
+
+        Log.d(TAG, "Data query successful");
+        return basalDaysTask.onSuccessTask(taskExecutor, days -> Tasks.forResult(new QueryResponse(response, days, st, et, basalAVG)));
+      }));
+  }
+
+  // datapoints of a data type in the responses of all the windows, sorted by time
+  private static List<DataPoint> responsePoints(String datatype, QueryResponse read, boolean filtered) {
+    if (read.responses.size() == 1) {
+      return responsePoints(datatype, read.responses.get(0), filtered);
+    }
+    List<DataPoint> points = new ArrayList<>();
+    // datapoints of the previous windows that end after their window
+    Set<String> crossing = new HashSet<>();
+    int last = read.responses.size() - 1;
+    for (int i = 0; i <= last; i++) {
+      long from = read.windows.get(i)[0];
+      long to = read.windows.get(i)[1];
+      for (DataPoint datapoint : responsePoints(datatype, read.responses.get(i), filtered)) {
+        long pst = datapoint.getStartTime(TimeUnit.MILLISECONDS);
+        // datapoints across two windows are returned by both, they are kept in the window where they start
+        if (i > 0 && pst < from) continue;
+        if (i < last && pst >= to) continue;
+        // segments such as activities are returned by the next windows with their start moved to that of the window
+        if (i > 0 && pst == from && crossing.contains(identityOf(datapoint))) continue;
+        if (i < last && datapoint.getEndTime(TimeUnit.MILLISECONDS) > to) crossing.add(identityOf(datapoint));
+        points.add(datapoint);
+      }
+    }
+    return points;
+  }
+
+  // datapoints of a data type in a read response, sorted by time
+  private static List<DataPoint> responsePoints(String datatype, DataReadResponse response, boolean filtered) {
+    if (datatype.equalsIgnoreCase("nutrition")) {
+      // water is returned among the nutrition items
+      return mergeByStartTime(response.getDataSet(DataType.TYPE_NUTRITION).getDataPoints(),
+        response.getDataSet(DataType.TYPE_HYDRATION).getDataPoints());
+    }
+    DataType dt = queryDataType(datatype);
+    DataSet dataset = dt.equals(DataType.TYPE_STEP_COUNT_DELTA) && filtered
+      ? response.getDataSet(filteredStepsSource())
+      : response.getDataSet(dt);
+    return dataset.getDataPoints();
+  }
+
+  // merges two lists of datapoints into one list sorted by start time
+  private static List<DataPoint> mergeByStartTime(List<DataPoint> a, List<DataPoint> b) {
+    // Google Fit does not guarantee the order of the points of a data set
+    a = sortedByStartTime(a);
+    b = sortedByStartTime(b);
+    List<DataPoint> merged = new ArrayList<>(a.size() + b.size());
+    int i = 0, j = 0;
+    while (i < a.size() || j < b.size()) {
+      if (j == b.size() || (i < a.size() && a.get(i).getStartTime(TimeUnit.MILLISECONDS) <= b.get(j).getStartTime(TimeUnit.MILLISECONDS))) {
+        merged.add(a.get(i++));
+      } else {
+        merged.add(b.get(j++));
+      }
+    }
+    return merged;
+  }
+
+  // copy of the given datapoints sorted by start time
+  private static List<DataPoint> sortedByStartTime(List<DataPoint> points) {
+    List<DataPoint> sorted = new ArrayList<>(points);
+    Collections.sort(sorted, (x, y) -> Long.compare(x.getStartTime(TimeUnit.MILLISECONDS), y.getStartTime(TimeUnit.MILLISECONDS)));
+    return sorted;
+  }
+
+
+  // converts datapoints of a data type into json objects
+  // days are the daily buckets of the basal metabolic rate, used for active calories
+  private Task<JSONArray> pointsToJSON(String datatype, List<DataPoint> points, List<Bucket> days, float basalAVG) throws JSONException {
+    boolean nutrition = datatype.equalsIgnoreCase("nutrition");
+    DataType dt = queryDataType(datatype);
+    // codecs are resolved once for all the data points
+    DatapointCodec codec = codecFor(datatype, dt);
+    DatapointCodec waterCodec = nutrition ? codecFor(datatype, DataType.TYPE_HYDRATION) : null;
+    boolean activity = dt.equals(DataType.TYPE_ACTIVITY_SEGMENT);
+    JSONArray resultset = new JSONArray();
+    List<ActivitySegment> activitySegments = new ArrayList<>();
+    for (DataPoint datapoint : points) {
+      // nutrition items may be water
+      JSONObject obj = datapointToJSON(nutrition && datapoint.getDataType().equals(DataType.TYPE_HYDRATION) ? waterCodec : codec, datapoint);
+      if (activity) {
+        // calories and distance related to the activity times are added after all segments are collected
+        activitySegments.add(new ActivitySegment(datapoint.getStartTime(TimeUnit.MILLISECONDS), datapoint.getEndTime(TimeUnit.MILLISECONDS), obj));
+      }
+      resultset.put(obj);
+    }
+    if (datatype.equalsIgnoreCase("calories.active")) {
+      subtractBasalCalories(resultset, days, basalAVG);
+    }
+    if (activitySegments.isEmpty()) {
+      return Tasks.forResult(resultset);
+    }
+    return addActivityDistanceCalories(activitySegments)
+      .onSuccessTask(taskExecutor, r -> Tasks.forResult(resultset));
+  }
+
+  // sends the datapoints to JavaScript in chunks, one after the other, so that only one chunk at a time is converted
+  // the resulting task gives the number of datapoints sent
+  private Task<Integer> streamChunks(String datatype, List<DataPoint> points, List<Bucket> days, float basalAVG,
+                                     int chunkSize, int from, String format, CallbackContext callbackContext) throws JSONException {
+    if (from == 0 && queryDataType(datatype).equals(DataType.TYPE_ACTIVITY_SEGMENT)) {
+      // distance and calories of activities need one more read, done once for all the segments
+      return pointsToJSON(datatype, points, days, basalAVG)
+        .onSuccessTask(taskExecutor, all -> {
+          for (int start = 0; start < all.length(); start += chunkSize) {
+            JSONArray chunk = new JSONArray();
+            for (int i = start; i < Math.min(start + chunkSize, all.length()); i++) {
+              chunk.put(all.get(i));
+            }
+            sendChunk(chunk, format, callbackContext);
+          }
+          return Tasks.forResult(points.size());
+        });
+    }
+    if (from >= points.size()) {
+      return Tasks.forResult(points.size());
+    }
+    final int to = Math.min(from + chunkSize, points.size());
+    return pointsToJSON(datatype, points.subList(from, to), days, basalAVG)
+      .onSuccessTask(taskExecutor, chunk -> {
+        sendChunk(chunk, format, callbackContext);
+        return streamChunks(datatype, points, days, basalAVG, chunkSize, to, format, callbackContext);
+      });
+  }
+
+  // sends one chunk of a streamed query, keeping the callback for the following ones
+  private static void sendChunk(JSONArray chunk, String format, CallbackContext callbackContext) throws JSONException {
+    Object encoded = ResultFormat.encode(chunk, format);
+    PluginResult result = encoded instanceof JSONArray
+      ? new PluginResult(PluginResult.Status.OK, (JSONArray) encoded)
+      : new PluginResult(PluginResult.Status.OK, (JSONObject) encoded);
+    result.setKeepCallback(true);
+    callbackContext.sendPluginResult(result);
+  }
+
+  // subtracts from each calories data point the basal calories burnt during its time
+  // days are the daily buckets of the basal metabolic rate, if missing the average is used
+  private static void subtractBasalCalories(JSONArray resultset, List<Bucket> days, float basalAVG) throws JSONException {
+    long[] dayStarts = new long[days.size()];
+    float[] dayBasals = new float[days.size()];
+    for (int i = 0; i < days.size(); i++) {
+      dayStarts[i] = days.get(i).getStartTime(TimeUnit.MILLISECONDS);
+      dayBasals[i] = getBasal(days.get(i), basalAVG);
+    }
+    for (int i = 0; i < resultset.length(); i++) {
+      JSONObject obj = resultset.getJSONObject(i);
+      long pst = obj.getLong("startDate");
+      long pet = obj.getLong("endDate");
+      int day = Arrays.binarySearch(dayStarts, pst);
+      if (day < 0) day = -day - 2; // the day starting before the point
+      float basal = day >= 0 ? dayBasals[day] : basalAVG;
+      double active = obj.getDouble("value") - basal * (pet - pst) / (double) TimeUnit.DAYS.toMillis(1);
+      //although it shouldn't happen, after subtracting, sometimes the values are negative,
+      //in that case let's return 0 (negative values don't make sense)
+      obj.put("value", Math.max(0, active));
+    }
+  }
+
+  // gets the daily basal metabolic rate of a bucket, or the given average if the bucket has none
+  private static float getBasal(Bucket bucket, float basalAVG) {
+    DataSet ds = bucket.getDataSet(DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
+    if (ds == null || ds.getDataPoints().isEmpty()) return basalAVG;
+    float basal = 0;
+    for (DataPoint dp : ds.getDataPoints()) {
+      basal += dp.getValue(Field.FIELD_AVERAGE).asFloat();
+    }
+    return basal / ds.getDataPoints().size();
+  }
+
+  // gets the active calories of a bucket: the total calories minus the basal ones over the bucket duration
+  private static double getActiveCalories(Bucket bucket, float basalAVG) {
+    double total = 0;
+    DataSet ds = bucket.getDataSet(DataType.AGGREGATE_CALORIES_EXPENDED);
+    if (ds != null) {
+      for (DataPoint dp : ds.getDataPoints()) {
+        total += dp.getValue(Field.FIELD_CALORIES).asFloat();
+      }
+    }
+    long duration = bucket.getEndTime(TimeUnit.MILLISECONDS) - bucket.getStartTime(TimeUnit.MILLISECONDS);
+    double active = total - getBasal(bucket, basalAVG) * duration / (double) TimeUnit.DAYS.toMillis(1);
+    //although it shouldn't happen, negative values don't make sense
+    return Math.max(0, active);
+  }
+
+  // converts a data point into a json object, the value is read by the codec of its data type
+  private static JSONObject datapointToJSON(DatapointCodec codec, DataPoint datapoint) throws JSONException {
+    JSONObject obj = new JSONObject();
+    obj.put("startDate", datapoint.getStartTime(TimeUnit.MILLISECONDS));
+    obj.put("endDate", datapoint.getEndTime(TimeUnit.MILLISECONDS));
+    DataSource dataSource = datapoint.getOriginalDataSource();
+    if (dataSource != null) {
+      String sourceBundleId = dataSource.getAppPackageName();
+      if (sourceBundleId != null) obj.put("sourceBundleId", sourceBundleId);
+    }
+    if (codec != null) {
+      codec.decoder.decode(datapoint, obj);
+    }
+    return obj;
+  }
+
+  private static void decodeNutrition(DataPoint datapoint, JSONObject obj) throws JSONException {
+    JSONObject dob = new JSONObject();
+    if (datapoint.getValue(Field.FIELD_FOOD_ITEM) != null) {
+      dob.put("item", datapoint.getValue(Field.FIELD_FOOD_ITEM).asString());
+    }
+    if (datapoint.getValue(Field.FIELD_MEAL_TYPE) != null) {
+      int mealt = datapoint.getValue(Field.FIELD_MEAL_TYPE).asInt();
+      if (mealt == Field.MEAL_TYPE_BREAKFAST)
+        dob.put("meal_type", "breakfast");
+      else if (mealt == Field.MEAL_TYPE_DINNER)
+        dob.put("meal_type", "dinner");
+      else if (mealt == Field.MEAL_TYPE_LUNCH)
+        dob.put("meal_type", "lunch");
+      else if (mealt == Field.MEAL_TYPE_SNACK)
+        dob.put("meal_type", "snack");
+      else dob.put("meal_type", "unknown");
+    }
+    if (datapoint.getValue(Field.FIELD_NUTRIENTS) != null) {
+      Value v = datapoint.getValue(Field.FIELD_NUTRIENTS);
+      dob.put("nutrients", getNutrients(v));
+    }
+    obj.put("value", dob);
+    obj.put("unit", "nutrition");
+  }
+
+  private static void decodeWaterItem(DataPoint datapoint, JSONObject obj) throws JSONException {
+    JSONObject nutrients = new JSONObject();
+    nutrients.put("nutrition.water", datapoint.getValue(Field.FIELD_VOLUME).asFloat());
+    JSONObject dob = new JSONObject();
+    dob.put("item", "water");
+    dob.put("nutrients", nutrients);
+    obj.put("value", dob);
+    obj.put("unit", "nutrition");
+  }
+
+  private static void decodeBloodGlucose(DataPoint datapoint, JSONObject obj) throws JSONException {
+    JSONObject glucob = new JSONObject();
+    float glucose = datapoint.getValue(HealthFields.FIELD_BLOOD_GLUCOSE_LEVEL).asFloat();
+    glucob.put("glucose", glucose);
+    if (datapoint.getValue(HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL).isSet() &&
+      datapoint.getValue(Field.FIELD_MEAL_TYPE).isSet()) {
+      int temp_to_meal = datapoint.getValue(HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL).asInt();
+      String meal = "";
+      if (temp_to_meal == HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_AFTER_MEAL) {
+        meal = "after_";
+      } else if (temp_to_meal == HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_BEFORE_MEAL) {
+        meal = "before_";
+      } else if (temp_to_meal == HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_FASTING) {
+        meal = "fasting";
+      } else if (temp_to_meal == HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_GENERAL) {
+        meal = "";
+      }
+      if (temp_to_meal != HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_FASTING) {
+        switch (datapoint.getValue(Field.FIELD_MEAL_TYPE).asInt()) {
+          case Field.MEAL_TYPE_BREAKFAST:
+            meal += "breakfast";
+            break;
+          case Field.MEAL_TYPE_DINNER:
+            meal += "dinner";
+            break;
+          case Field.MEAL_TYPE_LUNCH:
+            meal += "lunch";
+            break;
+          case Field.MEAL_TYPE_SNACK:
+            meal += "snack";
+            break;
+          default:
+            meal = "unknown";
+        }
+      }
+      glucob.put("meal", meal);
+    }
+    if (datapoint.getValue(HealthFields.FIELD_TEMPORAL_RELATION_TO_SLEEP).isSet()) {
+      String sleep = "";
+      switch (datapoint.getValue(HealthFields.FIELD_TEMPORAL_RELATION_TO_SLEEP).asInt()) {
+        case HealthFields.TEMPORAL_RELATION_TO_SLEEP_BEFORE_SLEEP:
+          sleep = "before_sleep";
+          break;
+        case HealthFields.TEMPORAL_RELATION_TO_SLEEP_DURING_SLEEP:
+          sleep = "during_sleep";
+          break;
+        case HealthFields.TEMPORAL_RELATION_TO_SLEEP_FULLY_AWAKE:
+          sleep = "fully_awake";
+          break;
+        case HealthFields.TEMPORAL_RELATION_TO_SLEEP_ON_WAKING:
+          sleep = "on_waking";
+          break;
+      }
+      glucob.put("sleep", sleep);
+    }
+    if (datapoint.getValue(HealthFields.FIELD_BLOOD_GLUCOSE_SPECIMEN_SOURCE).isSet()) {
+      String source = "";
+      switch (datapoint.getValue(HealthFields.FIELD_BLOOD_GLUCOSE_SPECIMEN_SOURCE).asInt()) {
+        case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_CAPILLARY_BLOOD:
+          source = "capillary_blood";
+          break;
+        case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_INTERSTITIAL_FLUID:
+          source = "interstitial_fluid";
+          break;
+        case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_PLASMA:
+          source = "plasma";
+          break;
+        case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_SERUM:
+          source = "serum";
+          break;
+        case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_TEARS:
+          source = "tears";
+          break;
+        case HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_WHOLE_BLOOD:
+          source = "whole_blood";
+          break;
+      }
+      glucob.put("source", source);
+    }
+    obj.put("value", glucob);
+    obj.put("unit", "mmol/L");
+  }
+
+  private static void decodeBloodPressure(DataPoint datapoint, JSONObject obj) throws JSONException {
+    JSONObject bpobj = new JSONObject();
+    if (datapoint.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC).isSet()) {
+      float systolic = datapoint.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC).asFloat();
+      bpobj.put("systolic", systolic);
+    }
+    if (datapoint.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC).isSet()) {
+      float diastolic = datapoint.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC).asFloat();
+      bpobj.put("diastolic", diastolic);
+    }
+    obj.put("value", bpobj);
+    obj.put("unit", "mmHg");
+  }
+
+  private static void decodeSleep(DataPoint datapoint, JSONObject obj) throws JSONException {
+    String sleepSegmentType = "";
+    switch (datapoint.getValue(Field.FIELD_SLEEP_SEGMENT_TYPE).asInt()) {
+      case SleepStages.AWAKE:
+        sleepSegmentType = "sleep.awake";
+        break;
+      case SleepStages.SLEEP:
+        sleepSegmentType = "sleep";
+        break;
+      case SleepStages.OUT_OF_BED:
+        sleepSegmentType = "sleep.outOfBed";
+        break;
+      case SleepStages.SLEEP_LIGHT:
+        sleepSegmentType = "sleep.light";
+        break;
+      case SleepStages.SLEEP_DEEP:
+        sleepSegmentType = "sleep.deep";
+        break;
+      case SleepStages.SLEEP_REM:
+        sleepSegmentType = "sleep.rem";
+        break;
+    }
+    obj.put("value", sleepSegmentType);
+    obj.put("unit", "sleepSegmentType");
+  }
+
+  // Helper class used for storing an activity segment while its distance and calories are computed
+  private static class ActivitySegment {
+    public long start;
+    public long end;
+    public JSONObject obj;
+
+    public ActivitySegment(long start, long end, JSONObject obj) {
+      this.start = start;
+      this.end = end;
+      this.obj = obj;
+    }
+  }
+
+  // Helper class used for storing a data series as primitive arrays sorted by start time
+  private static class TimeSeries {
+    public long[] starts;
+    public long[] ends;
+    // latest end among the samples up to each index
+    public long[] maxEnds;
+    public float[] values;
+
+    public TimeSeries(DataSet dataset, Field field) {
+      List<DataPoint> points = new ArrayList<>();
+      if (dataset != null) {
+        points.addAll(dataset.getDataPoints());
+      }
+      Collections.sort(points, (a, b) -> Long.compare(a.getStartTime(TimeUnit.MILLISECONDS), b.getStartTime(TimeUnit.MILLISECONDS)));
+      starts = new long[points.size()];
+      ends = new long[points.size()];
+      maxEnds = new long[points.size()];
+      values = new float[points.size()];
+      for (int i = 0; i < points.size(); i++) {
+        DataPoint dp = points.get(i);
+        starts[i] = dp.getStartTime(TimeUnit.MILLISECONDS);
+        ends[i] = dp.getEndTime(TimeUnit.MILLISECONDS);
+        maxEnds[i] = i > 0 ? Math.max(maxEnds[i - 1], ends[i]) : ends[i];
+        values[i] = dp.getValue(field).asFloat();
+      }
+    }
+
+    // moves the index forward past the samples that all end by the given time
+    public int seek(int from, long time) {
+      while (from < starts.length && maxEnds[from] <= time) from++;
+      return from;
+    }
+
+    // sums the samples overlapping the given interval, as a read of that interval would return them,
+    // starting from an index returned by seek()
+    public float sum(int from, long st, long et) {
+      float total = 0;
+      for (int i = from; i < starts.length && starts[i] < et; i++) {
+        if (ends[i] > st) total += values[i];
+      }
+      return total;
+    }
+  }
+
+  // adds distance and calories to activity segments
+  // all samples are read once over the whole window, then assigned to the segments sweeping them in time order
+  private Task<Void> addActivityDistanceCalories(final List<ActivitySegment> segments) {
+    long wst = Long.MAX_VALUE;
+    long wet = Long.MIN_VALUE;
+    for (ActivitySegment segment : segments) {
+      wst = Math.min(wst, segment.start);
+      wet = Math.max(wet, segment.end);
+    }
+
+    DataReadRequest readActivityRequest = new DataReadRequest.Builder()
+      .setTimeRange(wst, wet, TimeUnit.MILLISECONDS)
+      .read(DataType.TYPE_DISTANCE_DELTA)
+      .read(DataType.TYPE_CALORIES_EXPENDED)
+      .build();
+
+    return Fitness.getHistoryClient(this.cordova.getContext(), this.account)
+      .readData(readActivityRequest)
+      .continueWith(taskExecutor, task -> {
+        if (!task.isSuccessful()) throw failureOf(task);
+        DataReadResponse dataReadActivityResult = task.getResult();
+        if (!dataReadActivityResult.getStatus().isSuccess()) {
+          throw new Exception(dataReadActivityResult.getStatus().getStatusMessage());
+        }
+
+        TimeSeries distances = new TimeSeries(dataReadActivityResult.getDataSet(DataType.TYPE_DISTANCE_DELTA), Field.FIELD_DISTANCE);
+        TimeSeries calories = new TimeSeries(dataReadActivityResult.getDataSet(DataType.TYPE_CALORIES_EXPENDED), Field.FIELD_CALORIES);
+
+        Collections.sort(segments, (x, y) -> Long.compare(x.start, y.start));
+        int distIdx = 0;
+        int calIdx = 0;
+        for (ActivitySegment segment : segments) {
+          distIdx = distances.seek(distIdx, segment.start);
+          calIdx = calories.seek(calIdx, segment.start);
+          segment.obj.put("distance", distances.sum(distIdx, segment.start, segment.end));
+          segment.obj.put("calories", calories.sum(calIdx, segment.start, segment.end));
+        }
+        return null;
+      });
+  }
+
+  // utility function, gets the nutrients present in a Value as a json object
+  private static JSONObject getNutrients(Value nutrientsMap) throws JSONException {
+    JSONObject nutrients = new JSONObject();
+    for (int i = 0; i < nutrientKeys.length; i++) {
+      Float val = nutrientsMap.getKeyValue(nutrientKeys[i]);
+      if (val != null) {
+        nutrients.put(nutrientNames[i], (float) val);
+      }
+    }
+    return nutrients;
+  }
+
+  // utility function, adds the nutrients present in a Value to totals at the positions of nutrientKeys
+  // present tells which nutrients have been found at least once
+  private static void addNutrients(Value nutrientsMap, double[] totals, boolean[] present) {
+    for (int i = 0; i < nutrientKeys.length; i++) {
+      Float val = nutrientsMap.getKeyValue(nutrientKeys[i]);
+      if (val != null) {
+        totals[i] += val;
+        present[i] = true;
+      }
+    }
+  }
+
+  // queries and aggregates data
+  private void queryAggregated(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+    if (!args.getJSONObject(0).has("startDate")) {
+      callbackContext.error("Missing argument startDate");
+      return;
+    }
+    long st = args.getJSONObject(0).getLong("startDate");
+    if (!args.getJSONObject(0).has("endDate")) {
+      callbackContext.error("Missing argument endDate");
+      return;
+    }
+    long et = args.getJSONObject(0).getLong("endDate");
+    long _et = et; // keep track of the original end time, needed for basal calories
+    if (!args.getJSONObject(0).has("dataType")) {
+      callbackContext.error("Missing argument dataType");
+      return;
+    }
+    String datatype = args.getJSONObject(0).getString("dataType");
+    if (aggregateInputs(datatype) == null) {
+      callbackContext.error("Datatype " + datatype + " not supported");
+      return;
+    }
+
+    String bucketType = args.getJSONObject(0).has("bucket") ? args.getJSONObject(0).getString("bucket") : "";
+    if (!isBucketType(bucketType)) {
+      callbackContext.error("Bucket type " + bucketType + " not recognised");
+      return;
+    }
+    st = bucketStart(st, bucketType);
+    et = bucketEnd(et, bucketType);
+
+    boolean filtered = args.getJSONObject(0).has("filtered") && args.getJSONObject(0).getBoolean("filtered");
+
+    readAggregated(Collections.singletonList(datatype), st, et, _et, bucketType, filtered)
+      .addOnSuccessListener(taskExecutor, results -> sendResult(callbackContext, results.opt(datatype)))
+      .addOnFailureListener(taskExecutor, err -> callbackContext.error(err.getMessage()));
+  }
+
+  // queries and aggregates data of several data types at once
+  private void queryAggregatedMulti(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+    if (!args.getJSONObject(0).has("startDate")) {
+      callbackContext.error("Missing argument startDate");
+      return;
+    }
+    long st = args.getJSONObject(0).getLong("startDate");
+    if (!args.getJSONObject(0).has("endDate")) {
+      callbackContext.error("Missing argument endDate");
+      return;
+    }
+    long et = args.getJSONObject(0).getLong("endDate");
+    long _et = et; // keep track of the original end time, needed for basal calories
+    if (!args.getJSONObject(0).has("dataTypes")) {
+      callbackContext.error("Missing argument dataTypes");
+      return;
+    }
+    JSONArray dataTypes = args.getJSONObject(0).getJSONArray("dataTypes");
+    List<String> types = new ArrayList<>();
+    for (int i = 0; i < dataTypes.length(); i++) {
+      String datatype = dataTypes.getString(i);
+      if (aggregateInputs(datatype) == null) {
+        callbackContext.error("Datatype " + datatype + " not supported");
+        return;
+      }
+      if (!types.contains(datatype)) types.add(datatype);
+    }
+    if (types.isEmpty()) {
+      callbackContext.error("Missing argument dataTypes");
+      return;
+    }
+
+    String bucketType = args.getJSONObject(0).has("bucket") ? args.getJSONObject(0).getString("bucket") : "";
+    if (!isBucketType(bucketType)) {
+      callbackContext.error("Bucket type " + bucketType + " not recognised");
+      return;
+    }
+    st = bucketStart(st, bucketType);
+    et = bucketEnd(et, bucketType);
+
+    boolean filtered = args.getJSONObject(0).has("filtered") && args.getJSONObject(0).getBoolean("filtered");
+
+    readAggregated(types, st, et, _et, bucketType, filtered)
+      .addOnSuccessListener(taskExecutor, results -> callbackContext.success(results))
+      .addOnFailureListener(taskExecutor, err -> callbackContext.error(err.getMessage()));
+  }
+
+  // sets the aggregated queries read in the background when the app is resumed and after authorisation
+  // the list is kept on the device and the queries are read straight away
+  private void setWarmUp(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+    JSONArray list = args.getJSONArray(0);
+    if (list.length() > 0 && !queryCache.isEnabled()) {
+      // the results would be thrown away
+      callbackContext.error("The warm-up needs the cache, set HealthCacheSize in config.xml");
+      return;
+    }
+    for (int i = 0; i < list.length(); i++) {
+      JSONObject entry = list.getJSONObject(i);
+      if (!entry.has("dataTypes")) {
+        callbackContext.error("Missing argument dataTypes");
+        return;
+      }
+      JSONArray dataTypes = entry.getJSONArray("dataTypes");
+      for (int j = 0; j < dataTypes.length(); j++) {
+        if (aggregateInputs(dataTypes.getString(j)) == null) {
+          callbackContext.error("Datatype " + dataTypes.getString(j) + " not supported");
+          return;
+        }
+      }
+      // without a bucket the end time is not quantised, so the app would never ask for the same window
+      String bucketType = entry.optString("bucket", "");
+      if (bucketType.isEmpty() || !isBucketType(bucketType)) {
+        callbackContext.error("Bucket type " + bucketType + " not recognised");
+        return;
+      }
+    }
+    cordova.getContext().getSharedPreferences(WARMUP_PREFS, Context.MODE_PRIVATE)
+      .edit().putString("list", list.toString()).apply();
+    warmUpList = list;
+    warmUp();
+    callbackContext.success();
+  }
+
+  // reads the aggregated queries of the warm-up list into the cache
+  // each one covers the days from midnight days - 1 days ago to now
+  private void warmUp() {
+    final JSONArray list = warmUpList;
+    if (this.account == null || list.length() == 0 || !queryCache.isEnabled()) return;
+    try {
+      readExecutor.execute(() -> {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < list.length(); i++) {
+          try {
+            JSONObject entry = list.getJSONObject(i);
+            String bucketType = entry.getString("bucket");
+            JSONArray dataTypes = entry.getJSONArray("dataTypes");
+            List<String> types = new ArrayList<>();
+            for (int j = 0; j < dataTypes.length(); j++) {
+              if (!types.contains(dataTypes.getString(j))) types.add(dataTypes.getString(j));
+            }
+            long days = Math.max(1, entry.optInt("days", 1));
+            long st = bucketStart(bucketStart(now - TimeUnit.DAYS.toMillis(days - 1), "day"), bucketType);
+            long et = bucketEnd(now, bucketType);
+            readAggregated(types, st, et, now, bucketType, entry.optBoolean("filtered", false))
+              .addOnFailureListener(taskExecutor, err -> Log.w(TAG, "Cannot warm up aggregated query", err));
+          } catch (Exception ex) {
+            Log.w(TAG, "Cannot warm up aggregated query", ex);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      Log.w(TAG, "Warm-up skipped, too many pending requests");
+    }
+  }
+
+  // Google Fit data types aggregated for a data type, null if not supported
+  private static List<DataType> aggregateInputs(String datatype) {
+    if (datatype.equalsIgnoreCase("steps")) {
+      return Collections.singletonList(DataType.TYPE_STEP_COUNT_DELTA);
+    } else if (datatype.equalsIgnoreCase("distance")) {
+      return Collections.singletonList(DataType.TYPE_DISTANCE_DELTA);
+    } else if (datatype.equalsIgnoreCase("calories")) {
+      return Collections.singletonList(DataType.TYPE_CALORIES_EXPENDED);
+    } else if (datatype.equalsIgnoreCase("calories.basal")) {
+      return Collections.singletonList(DataType.TYPE_BASAL_METABOLIC_RATE);
+    } else if (datatype.equalsIgnoreCase("calories.active")) {
+      // total and basal calories in the same request
+      return Arrays.asList(DataType.TYPE_CALORIES_EXPENDED, DataType.TYPE_BASAL_METABOLIC_RATE);
+    } else if (datatype.equalsIgnoreCase("activity")) {
+      return Collections.singletonList(DataType.TYPE_ACTIVITY_SEGMENT);
+    } else if (datatype.equalsIgnoreCase("nutrition.water")) {
+      return Collections.singletonList(DataType.TYPE_HYDRATION);
+    } else if (datatype.equalsIgnoreCase("nutrition")) {
+      // nutrients and water in the same request
+      return Arrays.asList(DataType.TYPE_NUTRITION, DataType.TYPE_HYDRATION);
+    } else if (datatype.startsWith("nutrition")) {
+      return Collections.singletonList(DataType.TYPE_NUTRITION);
+    }
+    return null;
+  }
+
+  // aggregated data types in the buckets of a data type
+  private static Set<DataType> aggregateOutputs(String datatype) {
+    Set<DataType> outputs = new HashSet<>();
+    for (DataType input : aggregateInputs(datatype)) {
+      outputs.addAll(DataType.getAggregatesForInput(input));
+    }
+    return outputs;
+  }
+
+  // basal calories need the average over the week before the end time
+  private static boolean usesBasalAVG(String datatype) {
+    return datatype.equalsIgnoreCase("calories.basal") || datatype.equalsIgnoreCase("calories.active");
+  }
+
+  private static boolean isBucketType(String bucketType) {
+    return bucketType.isEmpty() || bucketType.equalsIgnoreCase("hour") || bucketType.equalsIgnoreCase("day")
+      || bucketType.equalsIgnoreCase("week") || bucketType.equalsIgnoreCase("month") || bucketType.equalsIgnoreCase("year");
+  }
+
+  // Google fit bucketing is different and start and end must be quantised
+  private static long bucketStart(long st, String bucketType) {
+    if (bucketType.isEmpty()) return st;
+    Calendar c = Calendar.getInstance();
+    c.setTimeInMillis(st);
+    c.clear(Calendar.MINUTE);
+    c.clear(Calendar.SECOND);
+    c.clear(Calendar.MILLISECOND);
+    if (!bucketType.equalsIgnoreCase("hour")) {
+      c.set(Calendar.HOUR_OF_DAY, 0);
+      if (bucketType.equalsIgnoreCase("week")) {
+        c.set(Calendar.DAY_OF_WEEK, c.getFirstDayOfWeek());
+      } else if (bucketType.equalsIgnoreCase("month")) {
+        c.set(Calendar.DAY_OF_MONTH, 1);
+      } else if (bucketType.equalsIgnoreCase("year")) {
+        c.set(Calendar.DAY_OF_YEAR, 1);
+      }
+    }
+    return c.getTimeInMillis();
+  }
+
+  private static long bucketEnd(long et, String bucketType) {
+    if (bucketType.isEmpty()) return et;
+    Calendar c = Calendar.getInstance();
+    c.setTimeInMillis(et);
+    c.clear(Calendar.MINUTE);
+    c.clear(Calendar.SECOND);
+    c.clear(Calendar.MILLISECOND);
+    if (bucketType.equalsIgnoreCase("hour")) {
+      c.add(Calendar.HOUR_OF_DAY, 1);
+    } else {
+      c.set(Calendar.HOUR_OF_DAY, 0);
+      if (bucketType.equalsIgnoreCase("day")) {
+        c.add(Calendar.DAY_OF_YEAR, 1);
+      } else if (bucketType.equalsIgnoreCase("week")) {
+        c.add(Calendar.DAY_OF_YEAR, 7);
+      } else if (bucketType.equalsIgnoreCase("month")) {
+        c.add(Calendar.MONTH, 1);
+      } else if (bucketType.equalsIgnoreCase("year")) {
+        c.add(Calendar.YEAR, 1);
+      }
+    }
+    return c.getTimeInMillis();
+  }
+
+  private static String aggregatedCacheKey(String datatype, long st, long et, String bucketType, boolean filtered) {
+    return "queryAggregated|" + datatype + "|" + st + "|" + et + "|" + bucketType.toLowerCase() + "|" + filtered;
+  }
+
+  // reads and aggregates the given data types with a single request, the results are keyed by data type
+  // st and et must already be quantised to the bucket type, _et is the original end time
+  private Task<JSONObject> readAggregated(List<String> types, long st, long et, long _et, String bucketType, boolean filtered) throws JSONException {
+    return readShared(types, datatype -> aggregatedCacheKey(datatype, st, et, bucketType, filtered),
+      toRead -> readAggregatedTypes(toRead, st, et, _et, bucketType, filtered));
+  }
+
+  // gives the cache key of the result of a data type
+  private interface ResultKeys {
+    String keyOf(String datatype);
+  }
+
+  // reads the results of the given data types, keyed by data type
+  private interface ResultReader {
+    Task<JSONObject> read(List<String> datatypes) throws Exception;
+  }
+
+  // gets the results of the given data types, keyed by data type
+  // data types whose result is cached are not read again, those being read by an identical request wait for it
+  private Task<JSONObject> readShared(List<String> types, final ResultKeys keys, ResultReader reader) throws JSONException {
+    final JSONObject results = new JSONObject();
+    final List<String> toRead = new ArrayList<>();
+    final List<TaskCompletionSource<Object>> reading = new ArrayList<>();
+    final List<String> joined = new ArrayList<>();
+    final List<Task<Object>> joinedTasks = new ArrayList<>();
+    synchronized (resultsInFlight) {
+      for (String datatype : types) {
+        String key = keys.keyOf(datatype);
+        Object cached = queryCache.get(key);
+        if (cached != null) {
+          results.put(datatype, cached);
+        } else if (resultsInFlight.containsKey(key)) {
+          joined.add(datatype);
+          joinedTasks.add(resultsInFlight.get(key));
+        } else {
+          TaskCompletionSource<Object> source = new TaskCompletionSource<>();
+          resultsInFlight.put(key, source.getTask());
+          reading.add(source);
+          toRead.add(datatype);
+        }
+      }
+    }
+
+    Task<JSONObject> readTask;
+    if (toRead.isEmpty()) {
+      readTask = Tasks.forResult(new JSONObject());
+    } else {
+      try {
+        readTask = reader.read(toRead);
+      } catch (Exception ex) {
+        readTask = Tasks.forException(ex);
+      }
+      // the requests waiting for these data types get the same outcome
+      readTask.addOnCompleteListener(taskExecutor, task -> {
+        synchronized (resultsInFlight) {
+          for (int i = 0; i < toRead.size(); i++) {
+            // the entry may have been replaced by a newer read after an invalidation
+            String key = keys.keyOf(toRead.get(i));
+            if (resultsInFlight.get(key) == reading.get(i).getTask()) resultsInFlight.remove(key);
+          }
+        }
+        for (int i = 0; i < toRead.size(); i++) {
+          if (task.isSuccessful()) {
+            reading.get(i).setResult(task.getResult().opt(toRead.get(i)));
+          } else {
+            reading.get(i).setException(task.getException() != null ? task.getException() : new Exception("Request cancelled"));
+          }
+        }
+      });
+    }
+
+    return readTask
+      .onSuccessTask(taskExecutor, read -> {
+        for (String datatype : toRead) {
+          results.put(datatype, read.get(datatype));
+        }
+        return Tasks.<Object>whenAllSuccess(joinedTasks);
+      })
+      .onSuccessTask(taskExecutor, joinedResults -> {
+        for (int i = 0; i < joined.size(); i++) {
+          results.put(joined.get(i), joinedResults.get(i));
+        }
+        return Tasks.forResult(results);
+      });
+  }
+
+  // reads and aggregates the given data types from the stored buckets and Google Fit, and caches the results
+  private Task<JSONObject> readAggregatedTypes(List<String> toRead, long st, long et, long _et, String bucketType, boolean filtered) throws JSONException {
+    final boolean hasbucket = !bucketType.isEmpty();
+    final boolean customBucket = hasbucket && !bucketType.equalsIgnoreCase("hour") && !bucketType.equalsIgnoreCase("day");
+    final JSONObject results = new JSONObject();
+    final long cacheGeneration = queryCache.generation();
+    // basal calories depend on the week before the end time too
+    final long basalStart = Math.min(st, _et - TimeUnit.DAYS.toMillis(7));
+
+    // basal metabolic rate is treated in a different way
+    // we need to query per day and not all days may have a sample
+    // so we query over a week then we take the average
+    boolean needsBasalAVG = false;
+    for (String datatype : toRead) {
+      needsBasalAVG |= usesBasalAVG(datatype);
+    }
+    Task<Float> basalTask;
+    if (needsBasalAVG) {
+      basalTask = getBasalAVG(_et);
+    } else {
+      basalTask = Tasks.forResult(0f);
+    }
+
+    // closed buckets are kept on the device, only the buckets that follow them are read from Google Fit
+    // when several data types are read together, the request starts after the buckets stored for all of them
+    final long bucketStep = bucketType.equalsIgnoreCase("hour") ? TimeUnit.HOURS.toMillis(1) : TimeUnit.DAYS.toMillis(1);
+    final boolean[] storable = new boolean[toRead.size()];
+    final List<List<JSONObject>> storedBuckets = new ArrayList<>();
+    int storedCount = Integer.MAX_VALUE;
+    for (int i = 0; i < toRead.size(); i++) {
+      String datatype = toRead.get(i);
+      storable[i] = bucketStore != null && hasbucket && isStorableAggregation(datatype, bucketType);
+      List<JSONObject> stored = storable[i] ? loadStoredBuckets(datatype, filtered, bucketType, st, bucketStep, et) : new ArrayList<JSONObject>();
+      storedBuckets.add(stored);
+      storedCount = Math.min(storedCount, stored.size());
+    }
+    for (int i = 0; i < storedBuckets.size(); i++) {
+      storedBuckets.set(i, new ArrayList<>(storedBuckets.get(i).subList(0, storedCount)));
+    }
+    final long readSt = st + storedCount * bucketStep;
+    if (storedCount > 0 && readSt >= et) {
+      Log.d(TAG, "All buckets found on the device");
+      for (int i = 0; i < toRead.size(); i++) {
+        String datatype = toRead.get(i);
+        JSONArray result = new JSONArray(storedBuckets.get(i));
+        queryCache.put(aggregatedCacheKey(datatype, st, et, bucketType, filtered), cacheGeneration, result, dependencies(datatype),
+          usesBasalAVG(datatype) ? basalStart : st, et);
+        results.put(datatype, result);
+      }
+      return Tasks.forResult(results);
+    }
+
+    DataReadRequest.Builder builder = new DataReadRequest.Builder();
+    builder.setTimeRange(readSt, et, TimeUnit.MILLISECONDS);
+
+    // different data types can share the same Google Fit data type, which is aggregated once
+    Set<DataType> aggregated = new HashSet<>();
+    for (String datatype : toRead) {
+      if (datatype.equalsIgnoreCase("steps") && filtered) {
+        // exceptional case for filtered steps
+        builder.aggregate(filteredStepsSource(), DataType.AGGREGATE_STEP_COUNT_DELTA);
+        continue;
+      }
+      for (DataType input : aggregateInputs(datatype)) {
+        if (aggregated.add(input)) {
+          builder.aggregate(input);
+        }
+      }
+    }
+
+    if (hasbucket) {
+      if (bucketType.equalsIgnoreCase("hour")) {
+        builder.bucketByTime(1, TimeUnit.HOURS);
+      } else if (bucketType.equalsIgnoreCase("day")) {
+        builder.bucketByTime(1, TimeUnit.DAYS);
+      } else {
+        // use days, then will need to aggregate manually
+        builder.bucketByTime(1, TimeUnit.DAYS);
+      }
+    } else {
+      if (toRead.size() == 1 && toRead.get(0).equalsIgnoreCase("activity")) {
+        builder.bucketByActivityType(1, TimeUnit.MILLISECONDS);
+      } else {
+        // together with other data types, activities are summed up from a single time bucket
+        long allms = et - st;
+        if (allms <= Integer.MAX_VALUE) {
+          builder.bucketByTime((int) allms, TimeUnit.MILLISECONDS);
+        } else {
+          builder.bucketByTime((int) (allms / 1000), TimeUnit.SECONDS);
+        }
+      }
+    }
+
+    DataReadRequest readRequest = builder.build();
+    final Task<DataReadResponse> readTask = Fitness.getHistoryClient(this.cordova.getContext(), this.account)
+      .readData(readRequest);
+
+    return basalTask
+      .onSuccessTask(taskExecutor, basalAVG -> readTask.onSuccessTask(taskExecutor, dataReadResult -> {
+        if (!dataReadResult.getStatus().isSuccess()) {
+          throw new Exception(dataReadResult.getStatus().getStatusMessage());
+        }
+        Log.d(TAG, "Got data from query aggregated");
+        List<Task<Object>> buckets = new ArrayList<>();
+        for (String datatype : toRead) {
+          buckets.add(aggregateBuckets(dataReadResult, datatype, hasbucket, customBucket, bucketType, readSt, et, basalAVG));
         }
+        return Tasks.<Object>whenAllSuccess(buckets);
+      }))
+      .onSuccessTask(taskExecutor, buckets -> {
+        for (int i = 0; i < toRead.size(); i++) {
+          String datatype = toRead.get(i);
+          Object result = buckets.get(i);
+          if (storable[i]) {
+            result = mergeStoredBuckets(datatype, filtered, bucketType, storedBuckets.get(i), (JSONArray) result);
+          }
+          queryCache.put(aggregatedCacheKey(datatype, st, et, bucketType, filtered), cacheGeneration, result, dependencies(datatype),
+            usesBasalAVG(datatype) ? basalStart : st, et);
+          results.put(datatype, result);
+        }
+        return Tasks.forResult(results);
+      });
+  }
+
+  // aggregations whose closed buckets can be stored on the device
+  // basal and active calories are excluded as empty buckets are filled with an average that changes over time
+  private static boolean isStorableAggregation(String datatype, String bucketType) {
+    return (bucketType.equalsIgnoreCase("hour") || bucketType.equalsIgnoreCase("day"))
+      && !datatype.equalsIgnoreCase("calories.basal") && !datatype.equalsIgnoreCase("calories.active");
+  }
+
+  // loads the contiguous closed buckets stored on the device from the start time
+  private List<JSONObject> loadStoredBuckets(String datatype, boolean filtered, String bucketType, long st, long step, long et) {
+    try {
+      return bucketStore.load(accountId(), datatype.toLowerCase(), filtered, bucketType.toLowerCase(), st, step, et);
+    } catch (Exception ex) {
+      Log.w(TAG, "Cannot load stored buckets", ex);
+      return new ArrayList<>();
+    }
+  }
+
+  // stores the closed buckets just read from Google Fit and returns them after the ones that were already stored
+  private JSONArray mergeStoredBuckets(String datatype, boolean filtered, String bucketType, List<JSONObject> storedBuckets, JSONArray readBuckets) throws JSONException {
+    JSONArray merged = new JSONArray();
+    for (JSONObject bucket : storedBuckets) {
+      merged.put(bucket);
+    }
+    long closedBefore = System.currentTimeMillis() - bucketSettleTime;
+    List<JSONObject> closed = new ArrayList<>();
+    for (int i = 0; i < readBuckets.length(); i++) {
+      JSONObject bucket = readBuckets.getJSONObject(i);
+      if (bucket.getLong("endDate") <= closedBefore) {
+        closed.add(bucket);
       }
+      merged.put(bucket);
+    }
+    try {
+      bucketStore.save(accountId(), datatype.toLowerCase(), filtered, bucketType.toLowerCase(), closed);
+    } catch (Exception ex) {
+      Log.w(TAG, "Cannot store buckets", ex);
+    }
+    return merged;
+  }
 
-      for (Bucket bucket : dataReadResult.getBuckets()) {
+  // removes cached and stored results affected by a change of the given data type in the given time window
+  private void invalidateCaches(DataType dt, long st, long et) {
+    queryCache.invalidate(dt, st, et);
+    // reads already running may miss the change, later requests start their own
+    synchronized (resultsInFlight) {
+      resultsInFlight.clear();
+    }
+    if (dt.equals(DataType.TYPE_BASAL_METABOLIC_RATE)) {
+      synchronized (basalAverages) {
+        basalAverages.clear();
+      }
+    }
+    if (bucketStore != null) {
+      List<String> affected = new ArrayList<>();
+      for (String datatype : datatypes.keySet()) {
+        if (dependencies(datatype).contains(dt)) {
+          affected.add(datatype.toLowerCase());
+        }
+      }
+      bucketStore.invalidate(affected, st, et);
+    }
+  }
 
-        if (hasbucket) {
-          if (customBucket) {
-            //find the bucket among customs
-            for (int i = 0; i < retBucketsArr.length(); i++) {
-              retBucket = retBucketsArr.getJSONObject(i);
-              long bst = retBucket.getLong("startDate");
-              long bet = retBucket.getLong("endDate");
-              if (bucket.getStartTime(TimeUnit.MILLISECONDS) >= bst
-                && bucket.getEndTime(TimeUnit.MILLISECONDS) <= bet) {
-                break;
-              }
-            }
+  // builds the buckets returned by queryAggregated() out of the buckets read from Google Fit
+  // the result is an array of buckets if a bucketing strategy is given, otherwise a single bucket
+  // values are summed into primitive accumulators and converted to JSON only at the end
+  private Task<Object> aggregateBuckets(DataReadResponse dataReadResult, String datatype, boolean hasbucket, boolean customBucket,
+                                        String bucketType, long st, long et, float basalAVG) throws JSONException {
+    AggregateBucket retBucket = null;
+    List<AggregateBucket> retBuckets = new ArrayList<>();
+    Set<DataType> outputs = aggregateOutputs(datatype);
+    NutrientFieldInfo fieldInfo = nutrientFields.get(datatype);
+    long[] customStarts = null;
+    if (hasbucket) {
+      if (customBucket) {
+        // create custom buckets, as these are not supported by Google Fit
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(st);
+        while (cal.getTimeInMillis() < et) {
+          long customSt = cal.getTimeInMillis();
+          if (bucketType.equalsIgnoreCase("week")) {
+            cal.add(Calendar.DAY_OF_YEAR, 7);
+          } else if (bucketType.equalsIgnoreCase("month")) {
+            cal.add(Calendar.MONTH, 1);
           } else {
-            //pick the current
-            retBucket = new JSONObject();
-            retBucket.put("startDate", bucket.getStartTime(TimeUnit.MILLISECONDS));
-            retBucket.put("endDate", bucket.getEndTime(TimeUnit.MILLISECONDS));
-            retBucketsArr.put(retBucket);
+            cal.add(Calendar.YEAR, 1);
           }
-          if (!retBucket.has("value")) {
-            retBucket.put("value", 0);
-            if (datatype.equalsIgnoreCase("steps")) {
-              retBucket.put("unit", "count");
-            } else if (datatype.equalsIgnoreCase("distance")) {
-              retBucket.put("unit", "m");
-            } else if (datatype.equalsIgnoreCase("calories")) {
-              retBucket.put("unit", "kcal");
-            } else if (datatype.equalsIgnoreCase("activity")) {
-              retBucket.put("unit", "activitySummary");
-              // query per bucket time to get distance and calories per activity
-              JSONObject actobj = getAggregatedActivityDistanceCalories(bucket.getStartTime(TimeUnit.MILLISECONDS), bucket.getEndTime(TimeUnit.MILLISECONDS));
-              retBucket.put("value", actobj);
-            } else if (datatype.equalsIgnoreCase("nutrition.water")) {
-              retBucket.put("unit", "ml");
-            } else if (datatype.equalsIgnoreCase("nutrition")) {
-              retBucket.put("value", new JSONObject());
-              retBucket.put("unit", "nutrition");
-            } else if (datatype.startsWith("nutrition.")) {
-              NutrientFieldInfo fieldInfo = nutrientFields.get(datatype);
-              if (fieldInfo != null) {
-                retBucket.put("unit", fieldInfo.unit);
-              }
+          retBuckets.add(new AggregateBucket(customSt, cal.getTimeInMillis()));
+        }
+        // custom buckets are sorted, the one holding a Google Fit bucket is found by its start
+        customStarts = new long[retBuckets.size()];
+        for (int i = 0; i < customStarts.length; i++) {
+          customStarts[i] = retBuckets.get(i).start;
+        }
+      }
+    } else {
+      //there will be only one bucket spanning all the period
+      retBucket = new AggregateBucket(st, et);
+      retBucket.fill(datatype);
+    }
+
+    for (Bucket bucket : dataReadResult.getBuckets()) {
+
+      if (hasbucket) {
+        if (customBucket) {
+          //find the bucket among customs, the last one if none holds it
+          int i = Arrays.binarySearch(customStarts, bucket.getStartTime(TimeUnit.MILLISECONDS));
+          if (i < 0) i = -i - 2;
+          if (i < 0 || bucket.getEndTime(TimeUnit.MILLISECONDS) > retBuckets.get(i).end) i = retBuckets.size() - 1;
+          retBucket = retBuckets.get(i);
+        } else {
+          //pick the current
+          retBucket = new AggregateBucket(bucket.getStartTime(TimeUnit.MILLISECONDS), bucket.getEndTime(TimeUnit.MILLISECONDS));
+          retBuckets.add(retBucket);
+        }
+        if (!retBucket.filled) {
+          retBucket.fill(datatype);
+        }
+      }
+
+      // aggregate data points over the bucket
+      if (datatype.equalsIgnoreCase("calories.active")) {
+        retBucket.value += getActiveCalories(bucket, basalAVG);
+        continue;
+      }
+
+      boolean atleastone = false;
+      for (DataSet dataset : bucket.getDataSets()) {
+        // other data types may have been aggregated in the same request
+        if (!outputs.contains(dataset.getDataType())) continue;
+        for (DataPoint datapoint : dataset.getDataPoints()) {
+          atleastone = true;
+          if (datatype.equalsIgnoreCase("steps")) {
+            retBucket.count += datapoint.getValue(Field.FIELD_STEPS).asInt();
+          } else if (datatype.equalsIgnoreCase("distance")) {
+            retBucket.value += datapoint.getValue(Field.FIELD_DISTANCE).asFloat();
+          } else if (datatype.equalsIgnoreCase("calories")) {
+            retBucket.value += datapoint.getValue(Field.FIELD_CALORIES).asFloat();
+          } else if (datatype.equalsIgnoreCase("calories.basal")) {
+            retBucket.value += datapoint.getValue(Field.FIELD_AVERAGE).asFloat();
+          } else if (datatype.equalsIgnoreCase("nutrition.water")) {
+            retBucket.value += datapoint.getValue(Field.FIELD_VOLUME).asFloat();
+          } else if (datatype.equalsIgnoreCase("nutrition")) {
+            if (dataset.getDataType().equals(DataType.TYPE_HYDRATION)) {
+              // water is aggregated in the same request as the other nutrients
+              retBucket.water += datapoint.getValue(Field.FIELD_VOLUME).asFloat();
+            } else if (datapoint.getValue(Field.FIELD_NUTRIENTS) != null) {
+              addNutrients(datapoint.getValue(Field.FIELD_NUTRIENTS), retBucket.nutrients, retBucket.nutrientsPresent);
+            }
+          } else if (datatype.startsWith("nutrition.")) {
+            if (fieldInfo != null) {
+              retBucket.value += datapoint.getValue(Field.FIELD_NUTRIENTS).getKeyValue(fieldInfo.field);
             }
+          } else if (datatype.equalsIgnoreCase("activity")) {
+            Value activity = datapoint.getValue(Field.FIELD_ACTIVITY);
+            ActivityTotal total = retBucket.activities.get(activity.asInt());
+            if (total == null) {
+              total = new ActivityTotal(activity.asActivity());
+              retBucket.activities.put(activity.asInt(), total);
+            }
+            total.duration += datapoint.getValue(Field.FIELD_DURATION).asInt();
           }
         }
+      } //end of data set loop
+      if (datatype.equalsIgnoreCase("calories.basal")) {
+        if (!atleastone) {
+          //when no basal is available, use the daily average
+          retBucket.value += basalAVG;
+        }
+        // if the bucket is not daily, it needs to be normalised
+        if (!hasbucket || bucketType.equalsIgnoreCase("hour")) {
+          retBucket.value = (retBucket.value / (24 * 60 * 60 * 1000)) * (retBucket.end - retBucket.start);
+        }
+      }
+    } // end of buckets loop
 
-        // aggregate data points over the bucket
-        boolean atleastone = false;
-        for (DataSet dataset : bucket.getDataSets()) {
-          for (DataPoint datapoint : dataset.getDataPoints()) {
-            atleastone = true;
-            if (datatype.equalsIgnoreCase("steps")) {
-              int nsteps = datapoint.getValue(Field.FIELD_STEPS).asInt();
-              int osteps = retBucket.getInt("value");
-              retBucket.put("value", osteps + nsteps);
-            } else if (datatype.equalsIgnoreCase("distance")) {
-              float ndist = datapoint.getValue(Field.FIELD_DISTANCE).asFloat();
-              double odist = retBucket.getDouble("value");
-              retBucket.put("value", odist + ndist);
-            } else if (datatype.equalsIgnoreCase("calories")) {
-              float ncal = datapoint.getValue(Field.FIELD_CALORIES).asFloat();
-              double ocal = retBucket.getDouble("value");
-              retBucket.put("value", ocal + ncal);
-            } else if (datatype.equalsIgnoreCase("calories.basal")) {
-              float ncal = datapoint.getValue(Field.FIELD_AVERAGE).asFloat();
-              double ocal = retBucket.getDouble("value");
-              retBucket.put("value", ocal + ncal);
-            } else if (datatype.equalsIgnoreCase("nutrition.water")) {
-              float nwat = datapoint.getValue(Field.FIELD_VOLUME).asFloat();
-              double owat = retBucket.getDouble("value");
-              retBucket.put("value", owat + nwat);
-            } else if (datatype.equalsIgnoreCase("nutrition")) {
-              JSONObject nutrsob = retBucket.getJSONObject("value");
-              if (datapoint.getValue(Field.FIELD_NUTRIENTS) != null) {
-                nutrsob = getNutrients(datapoint.getValue(Field.FIELD_NUTRIENTS), nutrsob);
-              }
-              retBucket.put("value", nutrsob);
-            } else if (datatype.startsWith("nutrition.")) {
-              Value nutrients = datapoint.getValue(Field.FIELD_NUTRIENTS);
-              NutrientFieldInfo fieldInfo = nutrientFields.get(datatype);
-              if (fieldInfo != null) {
-                float value = nutrients.getKeyValue(fieldInfo.field);
-                double total = retBucket.getDouble("value");
-                retBucket.put("value", total + value);
-              }
-            } else if (datatype.equalsIgnoreCase("activity")) {
-              String activity = datapoint.getValue(Field.FIELD_ACTIVITY).asActivity();
-              int ndur = datapoint.getValue(Field.FIELD_DURATION).asInt();
-              JSONObject actobj = retBucket.getJSONObject("value");
-              JSONObject summary;
-              if (actobj.has(activity)) {
-                summary = actobj.getJSONObject(activity);
-                int odur = summary.getInt("duration");
-                summary.put("duration", odur + ndur);
-              } else {
-                summary = new JSONObject();
-                summary.put("duration", ndur);
-              }
-              actobj.put(activity, summary);
-              retBucket.put("value", actobj);
-            }
+    JSONArray retBucketsArr = new JSONArray();
+    List<ActivityBucket> activityBuckets = new ArrayList<>();
+    if (!hasbucket) {
+      retBuckets.add(retBucket);
+    }
+    for (AggregateBucket aggregate : retBuckets) {
+      JSONObject json = aggregate.toJSON(datatype, fieldInfo);
+      retBucketsArr.put(json);
+      if (aggregate.activities != null) {
+        // distance and calories per activity are queried after the buckets are filled
+        activityBuckets.add(new ActivityBucket(aggregate.start, aggregate.end, json));
+      }
+    }
+    final Object result = hasbucket ? retBucketsArr : retBucketsArr.get(0);
+    if (activityBuckets.isEmpty()) {
+      return Tasks.forResult(result);
+    }
+    return addAggregatedActivityDistanceCalories(activityBuckets)
+      .onSuccessTask(taskExecutor, r -> Tasks.forResult(result));
+  }
+
+  // Helper class used for accumulating the values of a bucket returned by queryAggregated()
+  private static class AggregateBucket {
+    public final long start;
+    public final long end;
+    // false until a bucket read from Google Fit falls into this one, empty buckets have no value
+    public boolean filled = false;
+    public long count = 0;
+    public double value = 0;
+    public double water = 0;
+    // totals of the nutrients, at the positions of nutrientKeys
+    public double[] nutrients;
+    public boolean[] nutrientsPresent;
+    // activities keyed by their Google Fit constant
+    public SparseArray<ActivityTotal> activities;
+
+    public AggregateBucket(long start, long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    public void fill(String datatype) {
+      filled = true;
+      if (datatype.equalsIgnoreCase("activity")) {
+        activities = new SparseArray<>();
+      } else if (datatype.equalsIgnoreCase("nutrition")) {
+        nutrients = new double[nutrientKeys.length];
+        nutrientsPresent = new boolean[nutrientKeys.length];
+      }
+    }
+
+    public JSONObject toJSON(String datatype, NutrientFieldInfo fieldInfo) throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("startDate", start);
+      json.put("endDate", end);
+      if (!filled) return json;
+      if (datatype.equalsIgnoreCase("steps")) {
+        json.put("value", count);
+        json.put("unit", "count");
+      } else if (datatype.equalsIgnoreCase("distance")) {
+        json.put("value", value);
+        json.put("unit", "m");
+      } else if (datatype.equalsIgnoreCase("calories") || datatype.equalsIgnoreCase("calories.active")) {
+        json.put("value", value);
+        json.put("unit", "kcal");
+      } else if (datatype.equalsIgnoreCase("activity")) {
+        JSONObject actobj = new JSONObject();
+        for (int i = 0; i < activities.size(); i++) {
+          ActivityTotal total = activities.valueAt(i);
+          actobj.put(total.name, new JSONObject().put("duration", total.duration));
+        }
+        json.put("value", actobj);
+        json.put("unit", "activitySummary");
+      } else if (datatype.equalsIgnoreCase("nutrition.water")) {
+        json.put("value", value);
+        json.put("unit", "ml");
+      } else if (datatype.equalsIgnoreCase("nutrition")) {
+        JSONObject nutrobj = new JSONObject();
+        nutrobj.put("nutrition.water", water);
+        for (int i = 0; i < nutrients.length; i++) {
+          if (nutrientsPresent[i]) nutrobj.put(nutrientNames[i], nutrients[i]);
+        }
+        json.put("value", nutrobj);
+        json.put("unit", "nutrition");
+      } else {
+        json.put("value", value);
+        if (fieldInfo != null) {
+          json.put("unit", fieldInfo.unit);
+        }
+      }
+      return json;
+    }
+  }
+
+  // Helper class used for summing the duration of an activity within a bucket
+  private static class ActivityTotal {
+    public final String name;
+    public long duration = 0;
+
+    public ActivityTotal(String name) {
+      this.name = name;
+    }
+  }
+
+  // data types the result of a query on the given data type depends on, used to invalidate cached results
+  private static Set<DataType> dependencies(String datatype) {
+    Set<DataType> deps = new HashSet<>();
+    DataType dt = datatypes.get(datatype);
+    if (dt != null) {
+      deps.add(dt);
+    }
+    if (datatype.equalsIgnoreCase("activity")) {
+      // activities include distance and calories
+      deps.add(DataType.TYPE_DISTANCE_DELTA);
+      deps.add(DataType.TYPE_CALORIES_EXPENDED);
+    } else if (datatype.equalsIgnoreCase("calories.active")) {
+      deps.add(DataType.TYPE_CALORIES_EXPENDED);
+      deps.add(DataType.TYPE_BASAL_METABOLIC_RATE);
+    } else if (datatype.equalsIgnoreCase("nutrition")) {
+      // nutrition includes water
+      deps.add(DataType.TYPE_HYDRATION);
+    }
+    return deps;
+  }
+
+  // identifies the Google account data is read for, so that data kept on the device is not mixed between accounts
+  private String accountId() {
+    GoogleSignInAccount acc = this.account;
+    if (acc == null) return "";
+    if (acc.getId() != null) return acc.getId();
+    return acc.getEmail() != null ? acc.getEmail() : "";
+  }
+
+  // the exception a task failed with, so that the original cause reaches JavaScript
+  private static Exception failureOf(Task<?> task) {
+    return task.getException() != null ? task.getException() : new Exception("Request cancelled");
+  }
+
+  // sends a json array or a json object back to the JavaScript side
+  private void sendResult(CallbackContext callbackContext, Object result) {
+    if (result instanceof JSONArray) {
+      callbackContext.success((JSONArray) result);
+    } else {
+      callbackContext.success((JSONObject) result);
+    }
+  }
+
+  // Helper class used for storing an activity bucket while its distance and calories are queried
+  private static class ActivityBucket {
+    public long start;
+    public long end;
+    public JSONObject bucket;
+
+    public ActivityBucket(long start, long end, JSONObject bucket) {
+      this.start = start;
+      this.end = end;
+      this.bucket = bucket;
+    }
+  }
+
+  // queries distance and calories of each activity bucket in parallel
+  // and merges them, in order, with the durations already summed in the buckets
+  private Task<Void> addAggregatedActivityDistanceCalories(final List<ActivityBucket> activityBuckets) {
+    List<Callable<Task<JSONObject>>> reads = new ArrayList<>();
+    for (final ActivityBucket activityBucket : activityBuckets) {
+      reads.add(() -> getAggregatedActivityDistanceCalories(activityBucket.start, activityBucket.end));
+    }
+    return whenAllBounded(reads, activityParallelism).continueWith(taskExecutor, task -> {
+      if (!task.isSuccessful()) throw failureOf(task);
+      List<JSONObject> results = task.getResult();
+      for (int i = 0; i < activityBuckets.size(); i++) {
+        JSONObject distcal = results.get(i);
+        JSONObject actobj = activityBuckets.get(i).bucket.getJSONObject("value");
+        Iterator<String> activities = distcal.keys();
+        while (activities.hasNext()) {
+          String activity = activities.next();
+          JSONObject summary = distcal.getJSONObject(activity);
+          if (actobj.has(activity)) {
+            JSONObject existing = actobj.getJSONObject(activity);
+            existing.put("distance", summary.getDouble("distance"));
+            existing.put("calories", summary.getDouble("calories"));
+          } else {
+            actobj.put(activity, summary);
+          }
+        }
+      }
+      return null;
+    });
+  }
+
+  // runs the tasks created by the given factories keeping at most maxInFlight of them running at the same time
+  // the results are returned in the same order as the factories, the first failure fails the whole task
+  private <T> Task<List<T>> whenAllBounded(final List<Callable<Task<T>>> factories, int maxInFlight) {
+    final TaskCompletionSource<List<T>> completion = new TaskCompletionSource<>();
+    final int n = factories.size();
+    if (n == 0) {
+      completion.setResult(new ArrayList<T>());
+      return completion.getTask();
+    }
+    final List<T> results = new ArrayList<>(Collections.<T>nCopies(n, null));
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger done = new AtomicInteger();
+    Runnable launcher = new Runnable() {
+      @Override
+      public void run() {
+        final int i = next.getAndIncrement();
+        if (i >= n || completion.getTask().isComplete()) return;
+        Task<T> task;
+        try {
+          task = factories.get(i).call();
+        } catch (Exception ex) {
+          completion.trySetException(ex);
+          return;
+        }
+        final Runnable launchNext = this;
+        task.addOnCompleteListener(taskExecutor, t -> {
+          if (!t.isSuccessful()) {
+            completion.trySetException(t.getException() != null ? t.getException() : new Exception("Request cancelled"));
+            return;
           }
-        } //end of data set loop
-        if (datatype.equalsIgnoreCase("calories.basal")) {
-          double basals = retBucket.getDouble("value");
-          if (!atleastone) {
-            //when no basal is available, use the daily average
-            basals += basalAVG;
-            retBucket.put("value", basals);
+          synchronized (results) {
+            results.set(i, t.getResult());
           }
-          // if the bucket is not daily, it needs to be normalised
-          if (!hasbucket || bucketType.equalsIgnoreCase("hour")) {
-            long sst = retBucket.getLong("startDate");
-            long eet = retBucket.getLong("endDate");
-            basals = (basals / (24 * 60 * 60 * 1000)) * (eet - sst);
-            retBucket.put("value", basals);
+          if (done.incrementAndGet() == n) {
+            synchronized (results) {
+              completion.trySetResult(results);
+            }
+          } else {
+            launchNext.run();
           }
-        }
-      } // end of buckets loop
-      if (hasbucket) callbackContext.success(retBucketsArr);
-      else callbackContext.success(retBucket);
-    } catch (Exception e) {
-      callbackContext.error(e.getMessage());
+        });
+      }
+    };
+    for (int i = 0; i < Math.min(maxInFlight, n); i++) {
+      launcher.run();
     }
+    return completion.getTask();
   }
 
-  private JSONObject getAggregatedActivityDistanceCalories(long st, long et) throws Exception {
-    JSONObject actobj = new JSONObject();
-
+  private Task<JSONObject> getAggregatedActivityDistanceCalories(long st, long et) {
     DataReadRequest readActivityDistCalRequest = new DataReadRequest.Builder()
       .aggregate(DataType.TYPE_DISTANCE_DELTA)
       .aggregate(DataType.TYPE_CALORIES_EXPENDED)
@@ -1171,53 +2616,91 @@ public class HealthPlugin extends CordovaPlugin {
       .setTimeRange(st, et, TimeUnit.MILLISECONDS)
       .build();
 
-    Task<DataReadResponse> task = Fitness.getHistoryClient(this.cordova.getContext(), this.account)
-      .readData(readActivityDistCalRequest);
+    return Fitness.getHistoryClient(this.cordova.getContext(), this.account)
+      .readData(readActivityDistCalRequest)
+      .continueWith(taskExecutor, task -> {
+        if (!task.isSuccessful()) throw failureOf(task);
+        DataReadResponse dataActivityDistCalReadResult = task.getResult();
+        if (!dataActivityDistCalReadResult.getStatus().isSuccess()) {
+          throw new Exception(dataActivityDistCalReadResult.getStatus().getStatusMessage());
+        }
 
-    DataReadResponse dataActivityDistCalReadResult = Tasks.await(task);
-    if (!dataActivityDistCalReadResult.getStatus().isSuccess()) {
-      throw new Exception(dataActivityDistCalReadResult.getStatus().getStatusMessage());
-    }
+        JSONObject actobj = new JSONObject();
 
-    for (Bucket activityBucket : dataActivityDistCalReadResult.getBuckets()) {
-      //each bucket is an activity
-      float distance = 0;
-      float calories = 0;
-      String activity = activityBucket.getActivity();
+        for (Bucket activityBucket : dataActivityDistCalReadResult.getBuckets()) {
+          //each bucket is an activity
+          float distance = 0;
+          float calories = 0;
+          String activity = activityBucket.getActivity();
 
-      DataSet distanceDataSet = activityBucket.getDataSet(DataType.AGGREGATE_DISTANCE_DELTA);
-      for (DataPoint datapoint : distanceDataSet.getDataPoints()) {
-        distance += datapoint.getValue(Field.FIELD_DISTANCE).asFloat();
-      }
+          DataSet distanceDataSet = activityBucket.getDataSet(DataType.AGGREGATE_DISTANCE_DELTA);
+          for (DataPoint datapoint : distanceDataSet.getDataPoints()) {
+            distance += datapoint.getValue(Field.FIELD_DISTANCE).asFloat();
+          }
 
-      DataSet caloriesDataSet = activityBucket.getDataSet(DataType.AGGREGATE_CALORIES_EXPENDED);
-      for (DataPoint datapoint : caloriesDataSet.getDataPoints()) {
-        calories += datapoint.getValue(Field.FIELD_CALORIES).asFloat();
-      }
+          DataSet caloriesDataSet = activityBucket.getDataSet(DataType.AGGREGATE_CALORIES_EXPENDED);
+          for (DataPoint datapoint : caloriesDataSet.getDataPoints()) {
+            calories += datapoint.getValue(Field.FIELD_CALORIES).asFloat();
+          }
 
-      JSONObject summary;
-      if (actobj.has(activity)) {
-        summary = actobj.getJSONObject(activity);
-        double existingdistance = summary.getDouble("distance");
-        summary.put("distance", distance + existingdistance);
-        double existingcalories = summary.getDouble("calories");
-        summary.put("calories", calories + existingcalories);
-      } else {
-        summary = new JSONObject();
-        summary.put("duration", 0); // sum onto this whilst aggregating over buckets.
-        summary.put("distance", distance);
-        summary.put("calories", calories);
-      }
+          JSONObject summary;
+          if (actobj.has(activity)) {
+            summary = actobj.getJSONObject(activity);
+            double existingdistance = summary.getDouble("distance");
+            summary.put("distance", distance + existingdistance);
+            double existingcalories = summary.getDouble("calories");
+            summary.put("calories", calories + existingcalories);
+          } else {
+            summary = new JSONObject();
+            summary.put("duration", 0); // sum onto this whilst aggregating over buckets.
+            summary.put("distance", distance);
+            summary.put("calories", calories);
+          }
 
-      actobj.put(activity, summary);
-    }
-    return actobj;
+          actobj.put(activity, summary);
+        }
+        return actobj;
+      });
   }
 
 
-  // utility function that gets the basal metabolic rate averaged over a week
-  private float getBasalAVG(long _et) throws Exception {
-    float basalAVG = 0;
+  // utility function that gets the basal metabolic rate averaged over the week before the end of the day of _et
+  // averages are memoized per day, once expired the previous value is returned while a new one is read
+  private Task<Float> getBasalAVG(long _et) {
+    Calendar cal = java.util.Calendar.getInstance();
+    cal.setTimeInMillis(_et);
+    cal.set(Calendar.HOUR_OF_DAY, 0);
+    cal.clear(Calendar.MINUTE);
+    cal.clear(Calendar.SECOND);
+    cal.clear(Calendar.MILLISECOND);
+    final long day = cal.getTimeInMillis();
+    cal.add(Calendar.DAY_OF_YEAR, 1);
+    final long dayEnd = cal.getTimeInMillis();
+
+    long now = System.currentTimeMillis();
+    synchronized (basalAverages) {
+      final BasalAverage average = basalAverages.get(day);
+      if (average == null || (average.task.isComplete() && !average.task.isSuccessful())) {
+        BasalAverage computed = new BasalAverage(readBasalAVG(dayEnd), now);
+        basalAverages.put(day, computed);
+        return computed.task;
+      }
+      if (average.task.isComplete() && now - average.computedAt > basalTTL) {
+        // refresh in the background
+        average.computedAt = now;
+        final Task<Float> refresh = readBasalAVG(dayEnd);
+        refresh.addOnSuccessListener(taskExecutor, v -> {
+          synchronized (basalAverages) {
+            average.task = refresh;
+          }
+        });
+      }
+      return average.task;
+    }
+  }
+
+  // reads the basal metabolic rate averaged over a week
+  private Task<Float> readBasalAVG(long _et) {
     Calendar cal = java.util.Calendar.getInstance();
     cal.setTime(new Date(_et));
     //set start time to a week before end time
@@ -1230,34 +2713,36 @@ public class HealthPlugin extends CordovaPlugin {
     builder.setTimeRange(nst, _et, TimeUnit.MILLISECONDS);
     DataReadRequest readRequest = builder.build();
 
-    Task<DataReadResponse> task = Fitness.getHistoryClient(this.cordova.getContext(), this.account)
-      .readData(readRequest);
-
-    DataReadResponse dataReadResult = Tasks.await(task);
+    return Fitness.getHistoryClient(this.cordova.getContext(), this.account)
+      .readData(readRequest)
+      .continueWith(taskExecutor, task -> {
+        if (!task.isSuccessful()) throw failureOf(task);
+        DataReadResponse dataReadResult = task.getResult();
 
-    if (!dataReadResult.getStatus().isSuccess()) {
-      throw new Exception(dataReadResult.getStatus().getStatusMessage());
-    }
+        if (!dataReadResult.getStatus().isSuccess()) {
+          throw new Exception(dataReadResult.getStatus().getStatusMessage());
+        }
 
-    JSONObject obj = new JSONObject();
-    int avgsN = 0;
-    for (Bucket bucket : dataReadResult.getBuckets()) {
-      // in the com.google.bmr.summary data type, each data point represents
-      // the average, maximum and minimum basal metabolic rate, in kcal per day, over the time interval of the data point.
-      DataSet ds = bucket.getDataSet(DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
-      for (DataPoint dp : ds.getDataPoints()) {
-        float avg = dp.getValue(Field.FIELD_AVERAGE).asFloat();
-        basalAVG += avg;
-        avgsN++;
-      }
-    }
-    // do the average of the averages
-    if (avgsN != 0) basalAVG /= avgsN; // this a daily average
-    return basalAVG;
+        float basalAVG = 0;
+        int avgsN = 0;
+        for (Bucket bucket : dataReadResult.getBuckets()) {
+          // in the com.google.bmr.summary data type, each data point represents
+          // the average, maximum and minimum basal metabolic rate, in kcal per day, over the time interval of the data point.
+          DataSet ds = bucket.getDataSet(DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
+          for (DataPoint dp : ds.getDataPoints()) {
+            float avg = dp.getValue(Field.FIELD_AVERAGE).asFloat();
+            basalAVG += avg;
+            avgsN++;
+          }
+        }
+        // do the average of the averages
+        if (avgsN != 0) basalAVG /= avgsN; // this a daily average
+        return basalAVG;
+      });
   }
 
   // stores a data point
-  private void store(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+  private void store(final JSONArray args, final CallbackContext callbackContext) throws Exception {
     if (!args.getJSONObject(0).has("startDate")) {
       callbackContext.error("Missing argument startDate");
       return;
@@ -1301,169 +2786,295 @@ public class HealthPlugin extends CordovaPlugin {
       .build();
 
     DataSet.Builder dataSetBuilder = DataSet.builder(datasrc);
-    DataPoint.Builder datapointBuilder = DataPoint.builder(datasrc);
-    datapointBuilder.setTimeInterval(st, et, TimeUnit.MILLISECONDS);
-    if (dt.equals(DataType.TYPE_STEP_COUNT_DELTA)) {
-      String value = args.getJSONObject(0).getString("value");
-      int steps = Integer.parseInt(value);
-      datapointBuilder.setField(Field.FIELD_STEPS, steps);
-    } else if (dt.equals(DataType.TYPE_DISTANCE_DELTA)) {
-      String value = args.getJSONObject(0).getString("value");
-      float dist = Float.parseFloat(value);
-      datapointBuilder.setField(Field.FIELD_DISTANCE, dist);
-    } else if (dt.equals(DataType.TYPE_CALORIES_EXPENDED)) {
-      String value = args.getJSONObject(0).getString("value");
-      float cals = Float.parseFloat(value);
-      datapointBuilder.setField(Field.FIELD_CALORIES, cals);
-    } else if (dt.equals(DataType.TYPE_HEIGHT)) {
-      String value = args.getJSONObject(0).getString("value");
-      float height = Float.parseFloat(value);
-      datapointBuilder.setField(Field.FIELD_HEIGHT, height);
-    } else if (dt.equals(DataType.TYPE_WEIGHT)) {
-      String value = args.getJSONObject(0).getString("value");
-      float weight = Float.parseFloat(value);
-      datapointBuilder.setField(Field.FIELD_WEIGHT, weight);
-    } else if (dt.equals(DataType.TYPE_HEART_RATE_BPM)) {
-      String value = args.getJSONObject(0).getString("value");
-      float hr = Float.parseFloat(value);
-      datapointBuilder.setField(Field.FIELD_BPM, hr);
-    } else if (dt.equals(DataType.TYPE_BODY_FAT_PERCENTAGE)) {
-      String value = args.getJSONObject(0).getString("value");
-      float perc = Float.parseFloat(value);
-      datapointBuilder.setField(Field.FIELD_PERCENTAGE, perc);
-    } else if (dt.equals(DataType.TYPE_ACTIVITY_SEGMENT)) {
-      String value = args.getJSONObject(0).getString("value");
-      datapointBuilder.setField(Field.FIELD_ACTIVITY, value);
-    } else if (dt.equals(DataType.TYPE_HYDRATION)) {
-      float nuv = (float) args.getJSONObject(0).getDouble("value");
-      datapointBuilder.setField(Field.FIELD_VOLUME, nuv);
-    } else if (dt.equals(DataType.TYPE_NUTRITION)) {
-      if (datatype.startsWith("nutrition.")) {
-        //it's a single nutrient
-        NutrientFieldInfo nuf = nutrientFields.get(datatype);
-        float nuv = (float) args.getJSONObject(0).getDouble("value");
-        Map<String, Float> value = new HashMap<>();
-        value.put(nuf.field, nuv);
-        datapointBuilder.setField(Field.FIELD_NUTRIENTS, value);
-      } else {
-        // it's a nutrition object
-        JSONObject nutrobj = args.getJSONObject(0).getJSONObject("value");
-        String mealtype = nutrobj.getString("meal_type");
-        if (mealtype != null && !mealtype.isEmpty()) {
-          if (mealtype.equalsIgnoreCase("breakfast"))
-            datapointBuilder.setField(Field.FIELD_MEAL_TYPE, Field.MEAL_TYPE_BREAKFAST);
-          else if (mealtype.equalsIgnoreCase("lunch"))
-            datapointBuilder.setField(Field.FIELD_MEAL_TYPE, Field.MEAL_TYPE_LUNCH);
-          else if (mealtype.equalsIgnoreCase("snack"))
-            datapointBuilder.setField(Field.FIELD_MEAL_TYPE, Field.MEAL_TYPE_SNACK);
-          else if (mealtype.equalsIgnoreCase("dinner"))
-            datapointBuilder.setField(Field.FIELD_MEAL_TYPE, Field.MEAL_TYPE_DINNER);
-          else datapointBuilder.setField(Field.FIELD_MEAL_TYPE, Field.MEAL_TYPE_UNKNOWN);
+    dataSetBuilder.add(sampleToDataPoint(args.getJSONObject(0), codecFor(datatype, dt), datasrc));
+
+    if (writeQueue != null) {
+      // the sample is valid, it is written later together with other ones
+      JSONObject sample = new JSONObject(args.getJSONObject(0).toString());
+      sample.put("sourceBundleId", sourceBundleId);
+      boolean ackOnCommit = sample.optBoolean("ackOnCommit", false);
+      writeQueue.enqueue(sample, !ackOnCommit ? null : outcome -> {
+        if (outcome.optBoolean("success", false)) {
+          callbackContext.success();
+        } else {
+          callbackContext.error(outcome.optString("error", "Cannot store data"));
+        }
+      });
+      if (!ackOnCommit) callbackContext.success();
+      return;
+    }
+
+    Fitness.getHistoryClient(this.cordova.getContext(), this.account)
+      .insertData(dataSetBuilder.build())
+      .addOnSuccessListener(taskExecutor, r -> {
+        invalidateCaches(dt, st, et);
+        callbackContext.success();
+      })
+      .addOnFailureListener(err -> {
+        err.getCause().printStackTrace();
+        callbackContext.error(err.getMessage());
+      });
+  }
+
+  // Helper class used for grouping the samples of a batch that go in the same data set
+  private static class SampleBatch {
+    public final DataType dataType;
+    public final DataSource dataSource;
+    public final List<DataPoint> points = new ArrayList<>();
+    // position of each point in the batch sent from JavaScript
+    public final List<Integer> indexes = new ArrayList<>();
+
+    public SampleBatch(DataType dataType, DataSource dataSource) {
+      this.dataType = dataType;
+      this.dataSource = dataSource;
+    }
+  }
+
+  // stores many data points, inserting as few data sets as possible
+  // the result reports success or failure of each sample, in the same order
+  private void storeBatch(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+    if (this.account == null) {
+      callbackContext.error("You must call requestAuthorization() before storeBatch()");
+      return;
+    }
+    insertSamples(args.getJSONArray(0))
+      .addOnSuccessListener(taskExecutor, result -> callbackContext.success(result))
+      .addOnFailureListener(taskExecutor, err -> callbackContext.error(err.getMessage()));
+  }
+
+  // inserts the given samples grouped by data type and source
+  // the resulting task never fails, the outcome of each sample is given in the same order
+  private Task<JSONArray> insertSamples(JSONArray samples) throws JSONException {
+    final JSONObject[] outcomes = new JSONObject[samples.length()];
+    String defaultBundleId = cordova.getActivity().getApplicationContext().getPackageName();
+
+    // samples with the same data type and source go in the same data set
+    Map<String, SampleBatch> batches = new LinkedHashMap<>();
+    for (int i = 0; i < samples.length(); i++) {
+      JSONObject sample = samples.getJSONObject(i);
+      try {
+        // same arguments required by store()
+        for (String arg : new String[]{"startDate", "endDate", "dataType", "value", "sourceName"}) {
+          if (!sample.has(arg)) throw new IllegalArgumentException("Missing argument " + arg);
         }
-        String item = nutrobj.getString("item");
-        if (item != null && !item.isEmpty()) {
-          datapointBuilder.setField(Field.FIELD_FOOD_ITEM, item);
+        String datatype = sample.getString("dataType");
+        DataType dt = datatypes.get(datatype);
+        if (dt == null) throw new IllegalArgumentException("Datatype " + datatype + " not supported");
+        if (dt.equals(DataType.TYPE_BASAL_METABOLIC_RATE)) throw new IllegalArgumentException("basal calories cannot be stored in Android");
+        String sourceBundleId = sample.has("sourceBundleId") ? sample.getString("sourceBundleId") : defaultBundleId;
+
+        String key = dt.getName() + "|" + sourceBundleId;
+        SampleBatch batch = batches.get(key);
+        if (batch == null) {
+          DataSource datasrc = new DataSource.Builder()
+            .setAppPackageName(sourceBundleId)
+            .setDataType(dt)
+            .setType(DataSource.TYPE_RAW)
+            .build();
+          batch = new SampleBatch(dt, datasrc);
+          batches.put(key, batch);
         }
-        JSONObject nutrientsobj = nutrobj.getJSONObject("nutrients");
-        if (nutrientsobj != null) {
-          Map<String, Float> value = new HashMap<>();
-          Iterator<String> nutrients = nutrientsobj.keys();
-          while (nutrients.hasNext()) {
-            String nutrientName = nutrients.next();
-            NutrientFieldInfo nuf = nutrientFields.get(nutrientName);
-            if (nuf != null) {
-              float nuv = (float) nutrientsobj.getDouble(nutrientName);
-              value.put(nuf.field, nuv);
-            }
+        batch.points.add(sampleToDataPoint(sample, codecFor(datatype, dt), batch.dataSource));
+        batch.indexes.add(i);
+      } catch (Exception ex) {
+        outcomes[i] = new JSONObject().put("success", false).put("error", ex.getMessage()).put("refused", true);
+      }
+    }
+
+    // a data set cannot hold more than MAX_DATASET_POINTS points, bigger batches are split
+    List<Callable<Task<Void>>> inserts = new ArrayList<>();
+    for (SampleBatch batch : batches.values()) {
+      for (int from = 0; from < batch.points.size(); from += MAX_DATASET_POINTS) {
+        final int to = Math.min(from + MAX_DATASET_POINTS, batch.points.size());
+        final List<Integer> indexes = batch.indexes.subList(from, to);
+        DataSet.Builder dataSetBuilder = DataSet.builder(batch.dataSource);
+        long st = Long.MAX_VALUE;
+        long et = Long.MIN_VALUE;
+        try {
+          for (DataPoint datapoint : batch.points.subList(from, to)) {
+            dataSetBuilder.add(datapoint);
+            st = Math.min(st, datapoint.getStartTime(TimeUnit.MILLISECONDS));
+            et = Math.max(et, datapoint.getEndTime(TimeUnit.MILLISECONDS));
           }
-          datapointBuilder.setField(Field.FIELD_NUTRIENTS, value);
+        } catch (IllegalArgumentException ex) {
+          // the data set is refused as a whole, e.g. for duplicated points
+          JSONObject outcome = new JSONObject().put("success", false).put("error", ex.getMessage()).put("refused", true);
+          for (int i : indexes) outcomes[i] = outcome;
+          continue;
         }
+        final DataSet dataSet = dataSetBuilder.build();
+        final long setSt = st;
+        final long setEt = et;
+        // failures are reported per sample, so the insert task never fails
+        inserts.add(() -> Fitness.getHistoryClient(this.cordova.getContext(), this.account)
+          .insertData(dataSet)
+          .continueWith(taskExecutor, task -> {
+            JSONObject outcome = new JSONObject().put("success", task.isSuccessful());
+            if (task.isSuccessful()) {
+              invalidateCaches(batch.dataType, setSt, setEt);
+            } else {
+              Log.e(TAG, "Cannot insert data set", task.getException());
+              outcome.put("error", task.getException() != null ? task.getException().getMessage() : "Request cancelled");
+              if (isRefusal(task.getException())) outcome.put("refused", true);
+            }
+            synchronized (outcomes) {
+              for (int i : indexes) outcomes[i] = outcome;
+            }
+            return null;
+          }));
       }
-    } else if (dt.equals(HealthDataTypes.TYPE_BLOOD_GLUCOSE)) {
-      JSONObject glucoseobj = args.getJSONObject(0).getJSONObject("value");
-      float glucose = (float) glucoseobj.getDouble("glucose");
-      datapointBuilder.setField(HealthFields.FIELD_BLOOD_GLUCOSE_LEVEL, glucose);
-
-      if (glucoseobj.has("meal")) {
-        String meal = glucoseobj.getString("meal");
-        int mealType = Field.MEAL_TYPE_UNKNOWN;
-        int relationToMeal = HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_GENERAL;
-        if (meal.equalsIgnoreCase("fasting")) {
-          mealType = Field.MEAL_TYPE_UNKNOWN;
-          relationToMeal = HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_FASTING;
-        } else {
-          if (meal.startsWith("before_")) {
-            relationToMeal = HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_BEFORE_MEAL;
-            meal = meal.substring("before_".length());
-          } else if (meal.startsWith("after_")) {
-            relationToMeal = HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_AFTER_MEAL;
-            meal = meal.substring("after_".length());
-          }
-          if (meal.equalsIgnoreCase("dinner")) {
-            mealType = Field.MEAL_TYPE_DINNER;
-          } else if (meal.equalsIgnoreCase("lunch")) {
-            mealType = Field.MEAL_TYPE_LUNCH;
-          } else if (meal.equalsIgnoreCase("snack")) {
-            mealType = Field.MEAL_TYPE_SNACK;
-          } else if (meal.equalsIgnoreCase("breakfast")) {
-            mealType = Field.MEAL_TYPE_BREAKFAST;
+    }
+
+    return whenAllBounded(inserts, batchParallelism)
+      .continueWith(taskExecutor, t -> {
+        JSONArray result = new JSONArray();
+        synchronized (outcomes) {
+          for (JSONObject outcome : outcomes) {
+            if (outcome == null) {
+              // the insert could not even be started
+              outcome = new JSONObject();
+              outcome.put("success", false);
+              outcome.put("error", t.getException() != null ? t.getException().getMessage() : "Request cancelled");
+            }
+            result.put(outcome);
           }
         }
-        datapointBuilder.setField(HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL, relationToMeal);
-        datapointBuilder.setField(Field.FIELD_MEAL_TYPE, mealType);
-      }
-
-      if (glucoseobj.has("sleep")) {
-        String sleep = glucoseobj.getString("sleep");
-        int relationToSleep = HealthFields.TEMPORAL_RELATION_TO_SLEEP_FULLY_AWAKE;
-        if (sleep.equalsIgnoreCase("before_sleep")) {
-          relationToSleep = HealthFields.TEMPORAL_RELATION_TO_SLEEP_BEFORE_SLEEP;
-        } else if (sleep.equalsIgnoreCase("on_waking")) {
-          relationToSleep = HealthFields.TEMPORAL_RELATION_TO_SLEEP_ON_WAKING;
-        } else if (sleep.equalsIgnoreCase("during_sleep")) {
-          relationToSleep = HealthFields.TEMPORAL_RELATION_TO_SLEEP_DURING_SLEEP;
+        return result;
+      });
+  }
+
+  // tells if Google Fit refused a data set because of its content, as opposed to a failure that may not happen again
+  private static boolean isRefusal(Exception ex) {
+    if (ex instanceof IllegalArgumentException) return true;
+    if (!(ex instanceof ApiException)) return false;
+    int code = ((ApiException) ex).getStatusCode();
+    return code == CommonStatusCodes.DEVELOPER_ERROR
+      || code == FitnessStatusCodes.INCONSISTENT_DATA_TYPE
+      || code == FitnessStatusCodes.INVALID_DATA_POINT
+      || code == FitnessStatusCodes.INVALID_TIMESTAMP;
+  }
+
+  // converts a sample coming from JavaScript into a data point of the given data source
+  // the fields are set by the codec of its data type
+  private static DataPoint sampleToDataPoint(JSONObject sample, DatapointCodec codec, DataSource datasrc) throws JSONException {
+    DataPoint.Builder datapointBuilder = DataPoint.builder(datasrc);
+    datapointBuilder.setTimeInterval(sample.getLong("startDate"), sample.getLong("endDate"), TimeUnit.MILLISECONDS);
+    if (codec != null && codec.encoder != null) {
+      codec.encoder.encode(sample, datapointBuilder);
+    }
+    return datapointBuilder.build();
+  }
+
+  private static void encodeNutrition(JSONObject sample, DataPoint.Builder datapointBuilder) throws JSONException {
+    // it's a nutrition object
+    JSONObject nutrobj = sample.getJSONObject("value");
+    String mealtype = nutrobj.getString("meal_type");
+    if (mealtype != null && !mealtype.isEmpty()) {
+      if (mealtype.equalsIgnoreCase("breakfast"))
+        datapointBuilder.setField(Field.FIELD_MEAL_TYPE, Field.MEAL_TYPE_BREAKFAST);
+      else if (mealtype.equalsIgnoreCase("lunch"))
+        datapointBuilder.setField(Field.FIELD_MEAL_TYPE, Field.MEAL_TYPE_LUNCH);
+      else if (mealtype.equalsIgnoreCase("snack"))
+        datapointBuilder.setField(Field.FIELD_MEAL_TYPE, Field.MEAL_TYPE_SNACK);
+      else if (mealtype.equalsIgnoreCase("dinner"))
+        datapointBuilder.setField(Field.FIELD_MEAL_TYPE, Field.MEAL_TYPE_DINNER);
+      else datapointBuilder.setField(Field.FIELD_MEAL_TYPE, Field.MEAL_TYPE_UNKNOWN);
+    }
+    String item = nutrobj.getString("item");
+    if (item != null && !item.isEmpty()) {
+      datapointBuilder.setField(Field.FIELD_FOOD_ITEM, item);
+    }
+    JSONObject nutrientsobj = nutrobj.getJSONObject("nutrients");
+    if (nutrientsobj != null) {
+      Map<String, Float> value = new HashMap<>();
+      Iterator<String> nutrients = nutrientsobj.keys();
+      while (nutrients.hasNext()) {
+        String nutrientName = nutrients.next();
+        NutrientFieldInfo nuf = nutrientFields.get(nutrientName);
+        if (nuf != null) {
+          float nuv = (float) nutrientsobj.getDouble(nutrientName);
+          value.put(nuf.field, nuv);
+        }
+      }
+      datapointBuilder.setField(Field.FIELD_NUTRIENTS, value);
+    }
+  }
+
+  private static void encodeBloodGlucose(JSONObject sample, DataPoint.Builder datapointBuilder) throws JSONException {
+    JSONObject glucoseobj = sample.getJSONObject("value");
+    float glucose = (float) glucoseobj.getDouble("glucose");
+    datapointBuilder.setField(HealthFields.FIELD_BLOOD_GLUCOSE_LEVEL, glucose);
+
+    if (glucoseobj.has("meal")) {
+      String meal = glucoseobj.getString("meal");
+      int mealType = Field.MEAL_TYPE_UNKNOWN;
+      int relationToMeal = HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_GENERAL;
+      if (meal.equalsIgnoreCase("fasting")) {
+        mealType = Field.MEAL_TYPE_UNKNOWN;
+        relationToMeal = HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_FASTING;
+      } else {
+        if (meal.startsWith("before_")) {
+          relationToMeal = HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_BEFORE_MEAL;
+          meal = meal.substring("before_".length());
+        } else if (meal.startsWith("after_")) {
+          relationToMeal = HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL_AFTER_MEAL;
+          meal = meal.substring("after_".length());
         }
-        datapointBuilder.setField(HealthFields.FIELD_TEMPORAL_RELATION_TO_SLEEP, relationToSleep);
-      }
-
-      if (glucoseobj.has("source")) {
-        String source = glucoseobj.getString("source");
-        int specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_CAPILLARY_BLOOD;
-        if (source.equalsIgnoreCase("interstitial_fluid")) {
-          specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_INTERSTITIAL_FLUID;
-        } else if (source.equalsIgnoreCase("plasma")) {
-          specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_PLASMA;
-        } else if (source.equalsIgnoreCase("serum")) {
-          specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_SERUM;
-        } else if (source.equalsIgnoreCase("tears")) {
-          specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_TEARS;
-        } else if (source.equalsIgnoreCase("whole_blood")) {
-          specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_WHOLE_BLOOD;
+        if (meal.equalsIgnoreCase("dinner")) {
+          mealType = Field.MEAL_TYPE_DINNER;
+        } else if (meal.equalsIgnoreCase("lunch")) {
+          mealType = Field.MEAL_TYPE_LUNCH;
+        } else if (meal.equalsIgnoreCase("snack")) {
+          mealType = Field.MEAL_TYPE_SNACK;
+        } else if (meal.equalsIgnoreCase("breakfast")) {
+          mealType = Field.MEAL_TYPE_BREAKFAST;
         }
-        datapointBuilder.setField(HealthFields.FIELD_BLOOD_GLUCOSE_SPECIMEN_SOURCE, specimenSource);
       }
-    } else if (dt == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
-      JSONObject bpobj = args.getJSONObject(0).getJSONObject("value");
-      if (bpobj.has("systolic")) {
-        float systolic = (float) bpobj.getDouble("systolic");
-        datapointBuilder.setField(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC, systolic);
+      datapointBuilder.setField(HealthFields.FIELD_TEMPORAL_RELATION_TO_MEAL, relationToMeal);
+      datapointBuilder.setField(Field.FIELD_MEAL_TYPE, mealType);
+    }
+
+    if (glucoseobj.has("sleep")) {
+      String sleep = glucoseobj.getString("sleep");
+      int relationToSleep = HealthFields.TEMPORAL_RELATION_TO_SLEEP_FULLY_AWAKE;
+      if (sleep.equalsIgnoreCase("before_sleep")) {
+        relationToSleep = HealthFields.TEMPORAL_RELATION_TO_SLEEP_BEFORE_SLEEP;
+      } else if (sleep.equalsIgnoreCase("on_waking")) {
+        relationToSleep = HealthFields.TEMPORAL_RELATION_TO_SLEEP_ON_WAKING;
+      } else if (sleep.equalsIgnoreCase("during_sleep")) {
+        relationToSleep = HealthFields.TEMPORAL_RELATION_TO_SLEEP_DURING_SLEEP;
       }
-      if (bpobj.has("diastolic")) {
-        float diastolic = (float) bpobj.getDouble("diastolic");
-        datapointBuilder.setField(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC, diastolic);
+      datapointBuilder.setField(HealthFields.FIELD_TEMPORAL_RELATION_TO_SLEEP, relationToSleep);
+    }
+
+    if (glucoseobj.has("source")) {
+      String source = glucoseobj.getString("source");
+      int specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_CAPILLARY_BLOOD;
+      if (source.equalsIgnoreCase("interstitial_fluid")) {
+        specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_INTERSTITIAL_FLUID;
+      } else if (source.equalsIgnoreCase("plasma")) {
+        specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_PLASMA;
+      } else if (source.equalsIgnoreCase("serum")) {
+        specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_SERUM;
+      } else if (source.equalsIgnoreCase("tears")) {
+        specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_TEARS;
+      } else if (source.equalsIgnoreCase("whole_blood")) {
+        specimenSource = HealthFields.BLOOD_GLUCOSE_SPECIMEN_SOURCE_WHOLE_BLOOD;
       }
+      datapointBuilder.setField(HealthFields.FIELD_BLOOD_GLUCOSE_SPECIMEN_SOURCE, specimenSource);
     }
-    dataSetBuilder.add(datapointBuilder.build());
+  }
 
-    Fitness.getHistoryClient(this.cordova.getContext(), this.account)
-      .insertData(dataSetBuilder.build())
-      .addOnSuccessListener(r -> {
-        callbackContext.success();
-      })
-      .addOnFailureListener(err -> {
-        err.getCause().printStackTrace();
-        callbackContext.error(err.getMessage());
-      });
+  private static void encodeBloodPressure(JSONObject sample, DataPoint.Builder datapointBuilder) throws JSONException {
+    JSONObject bpobj = sample.getJSONObject("value");
+    if (bpobj.has("systolic")) {
+      float systolic = (float) bpobj.getDouble("systolic");
+      datapointBuilder.setField(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC, systolic);
+    }
+    if (bpobj.has("diastolic")) {
+      float diastolic = (float) bpobj.getDouble("diastolic");
+      datapointBuilder.setField(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC, diastolic);
+    }
   }
 
   // deletes data points in a given time window
@@ -1497,7 +3108,8 @@ public class HealthPlugin extends CordovaPlugin {
 
     Fitness.getHistoryClient(this.cordova.getContext(), this.account)
       .deleteData(request)
-      .addOnSuccessListener(r -> {
+      .addOnSuccessListener(taskExecutor, r -> {
+        invalidateCaches(dt, st, et);
         callbackContext.success();
       })
       .addOnFailureListener(err -> {
@@ -1505,4 +3117,137 @@ public class HealthPlugin extends CordovaPlugin {
         callbackContext.error(err.getMessage());
       });
   }
+
+  // deletes data points of several data types and time windows
+  // overlapping windows of the same data type are merged, data types with the same windows are deleted together
+  private void deleteBatch(final JSONArray args, final CallbackContext callbackContext) throws JSONException {
+    if (this.account == null) {
+      callbackContext.error("You must call requestAuthorization() before deleteBatch()");
+      return;
+    }
+    JSONArray ranges = args.getJSONArray(0);
+    Map<DataType, List<long[]>> windows = new LinkedHashMap<>();
+    // data type names as given from JavaScript, used in the report
+    final Map<DataType, String> names = new HashMap<>();
+    for (int i = 0; i < ranges.length(); i++) {
+      JSONObject range = ranges.getJSONObject(i);
+      if (!range.has("startDate")) {
+        callbackContext.error("Missing argument startDate");
+        return;
+      }
+      if (!range.has("endDate")) {
+        callbackContext.error("Missing argument endDate");
+        return;
+      }
+      if (!range.has("dataType")) {
+        callbackContext.error("Missing argument dataType");
+        return;
+      }
+      String datatype = range.getString("dataType");
+      DataType dt = datatypes.get(datatype);
+      if (dt == null) {
+        callbackContext.error("Datatype " + datatype + " not supported");
+        return;
+      }
+      if (dt.equals(DataType.TYPE_BASAL_METABOLIC_RATE)) {
+        callbackContext.error("basal calories cannot be deleted in Android");
+        return;
+      }
+      List<long[]> dtWindows = windows.get(dt);
+      if (dtWindows == null) {
+        dtWindows = new ArrayList<>();
+        windows.put(dt, dtWindows);
+        names.put(dt, datatype);
+      }
+      dtWindows.add(new long[]{range.getLong("startDate"), range.getLong("endDate")});
+    }
+
+    // one request per distinct window, with all the data types that have to be deleted in it
+    Map<List<Long>, List<DataType>> requests = new LinkedHashMap<>();
+    for (Map.Entry<DataType, List<long[]>> entry : windows.entrySet()) {
+      for (long[] window : mergeWindows(entry.getValue())) {
+        List<Long> key = Arrays.asList(window[0], window[1]);
+        List<DataType> dts = requests.get(key);
+        if (dts == null) {
+          dts = new ArrayList<>();
+          requests.put(key, dts);
+        }
+        dts.add(entry.getKey());
+      }
+    }
+
+    final JSONArray failed = new JSONArray();
+    List<Callable<Task<Boolean>>> deletes = new ArrayList<>();
+    for (Map.Entry<List<Long>, List<DataType>> entry : requests.entrySet()) {
+      final long st = entry.getKey().get(0);
+      final long et = entry.getKey().get(1);
+      final List<DataType> dts = entry.getValue();
+      DataDeleteRequest.Builder builder = new DataDeleteRequest.Builder()
+        .setTimeInterval(st, et, TimeUnit.MILLISECONDS);
+      for (DataType dt : dts) {
+        builder.addDataType(dt);
+      }
+      final DataDeleteRequest request = builder.build();
+      // failures are reported in the result, so the delete task never fails
+      deletes.add(() -> Fitness.getHistoryClient(this.cordova.getContext(), this.account)
+        .deleteData(request)
+        .continueWith(taskExecutor, task -> {
+          if (task.isSuccessful()) {
+            for (DataType dt : dts) {
+              invalidateCaches(dt, st, et);
+            }
+            return true;
+          }
+          Log.e(TAG, "Cannot delete data", task.getException());
+          JSONArray failedTypes = new JSONArray();
+          for (DataType dt : dts) {
+            failedTypes.put(names.get(dt));
+          }
+          JSONObject failure = new JSONObject();
+          failure.put("startDate", st);
+          failure.put("endDate", et);
+          failure.put("dataTypes", failedTypes);
+          failure.put("error", task.getException() != null ? task.getException().getMessage() : "Request cancelled");
+          synchronized (failed) {
+            failed.put(failure);
+          }
+          return false;
+        }));
+    }
+
+    whenAllBounded(deletes, batchParallelism)
+      .addOnSuccessListener(taskExecutor, outcomes -> {
+        int succeeded = 0;
+        for (Boolean outcome : outcomes) {
+          if (outcome) succeeded++;
+        }
+        try {
+          JSONObject report = new JSONObject();
+          report.put("requests", outcomes.size());
+          report.put("succeeded", succeeded);
+          synchronized (failed) {
+            report.put("failed", failed);
+          }
+          callbackContext.success(report);
+        } catch (JSONException ex) {
+          callbackContext.error(ex.getMessage());
+        }
+      })
+      .addOnFailureListener(taskExecutor, err -> callbackContext.error(err.getMessage()));
+  }
+
+  // sorts the given time windows and merges those that overlap or touch
+  private static List<long[]> mergeWindows(List<long[]> windows) {
+    Collections.sort(windows, (a, b) -> Long.compare(a[0], b[0]));
+    List<long[]> merged = new ArrayList<>();
+    for (long[] window : windows) {
+      long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (last != null && window[0] <= last[1]) {
+        last[1] = Math.max(last[1], window[1]);
+      } else {
+        merged.add(new long[]{window[0], window[1]});
+      }
+    }
+    return merged;
+  }
 }
@@ -0,0 +1,125 @@
+package org.apache.cordova.health;
+
+import com.google.android.gms.fitness.data.DataType;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory cache of query results, evicted by size (least recently used first) and by age.
+ * MIT licensed.
+ */
+class QueryCache {
+
+  // Helper class used for storing a cached result together with what it depends on
+  private static class CachedResult {
+    public Object result;
+    public Set<DataType> dependencies;
+    public long startDate;
+    public long endDate;
+    public long expires;
+
+    public CachedResult(Object result, Set<DataType> dependencies, long startDate, long endDate, long expires) {
+      this.result = result;
+      this.dependencies = dependencies;
+      this.startDate = startDate;
+      this.endDate = endDate;
+      this.expires = expires;
+    }
+  }
+
+  private final int maxEntries;
+  private final long ttl;
+  private final LinkedHashMap<String, CachedResult> entries;
+
+  // incremented on every invalidation, used to discard results of queries started before it
+  private long generation = 0;
+
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * @param maxEntries maximum number of cached results, 0 disables the cache
+   * @param ttl        time to live of a cached result, in milliseconds
+   */
+  QueryCache(final int maxEntries, long ttl) {
+    this.maxEntries = maxEntries;
+    this.ttl = ttl;
+    // access order, so that the eldest entry is the least recently used one
+    this.entries = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+        if (size() > QueryCache.this.maxEntries) {
+          evictions++;
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  boolean isEnabled() {
+    return maxEntries > 0;
+  }
+
+  // returns the cached result for the key, or null if missing or expired
+  synchronized Object get(String key) {
+    if (!isEnabled()) return null;
+    CachedResult entry = entries.get(key);
+    if (entry != null && entry.expires < System.currentTimeMillis()) {
+      entries.remove(key);
+      evictions++;
+      entry = null;
+    }
+    if (entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.result;
+  }
+
+  // current generation, to be passed to put() once the query completes
+  synchronized long generation() {
+    return generation;
+  }
+
+  // caches a result, unless the cache has been invalidated since the query was started
+  synchronized void put(String key, long startGeneration, Object result, Set<DataType> dependencies, long startDate, long endDate) {
+    if (!isEnabled() || startGeneration != generation) return;
+    entries.put(key, new CachedResult(result, dependencies, startDate, endDate, System.currentTimeMillis() + ttl));
+  }
+
+  // removes the results depending on the given data type that overlap the given time window
+  synchronized void invalidate(DataType dt, long startDate, long endDate) {
+    generation++;
+    Iterator<CachedResult> it = entries.values().iterator();
+    while (it.hasNext()) {
+      CachedResult entry = it.next();
+      if (entry.dependencies.contains(dt) && entry.startDate <= endDate && entry.endDate >= startDate) {
+        it.remove();
+      }
+    }
+  }
+
+  synchronized void clear() {
+    generation++;
+    entries.clear();
+  }
+
+  synchronized JSONObject getStats() throws JSONException {
+    JSONObject stats = new JSONObject();
+    stats.put("hits", hits);
+    stats.put("misses", misses);
+    stats.put("evictions", evictions);
+    stats.put("size", entries.size());
+    stats.put("maxSize", maxEntries);
+    return stats;
+  }
+}
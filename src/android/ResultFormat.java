@@ -0,0 +1,125 @@
+package org.apache.cordova.health;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encodings of the datapoints returned by query(), other than the default array of objects.
+ * MIT licensed.
+ */
+class ResultFormat {
+  static final String ROWS = "rows";
+  static final String COLUMNAR = "columnar";
+  static final String DELTA = "delta";
+
+  // timestamps sent as the difference from the same field of the previous datapoint in the delta format
+  private static final String[] TIMESTAMPS = {"startDate", "endDate"};
+
+  // fields whose values repeat across datapoints, sent once in a table and referenced by index
+  private static final String[][] DICTIONARIES = {
+    {"unit", "units"},
+    {"sourceBundleId", "sourceBundleIds"}
+  };
+
+  private ResultFormat() {
+  }
+
+  static boolean isSupported(String format) {
+    return ROWS.equals(format) || COLUMNAR.equals(format) || DELTA.equals(format);
+  }
+
+  /**
+   * Encodes the given datapoints in the given format.
+   *
+   * @param points datapoints as returned by query()
+   * @param format one of the supported formats
+   * @return the points themselves for the rows format, an object otherwise
+   */
+  static Object encode(JSONArray points, String format) throws JSONException {
+    if (COLUMNAR.equals(format) || DELTA.equals(format)) {
+      return columnar(points, format);
+    }
+    return points;
+  }
+
+  // one array per field, with an element per datapoint (null where the datapoint has no such field)
+  // units and sources are replaced by their index in a table
+  // in the delta format timestamps are the difference from the previous datapoint, the first one is absolute
+  private static JSONObject columnar(JSONArray points, String format) throws JSONException {
+    int n = points.length();
+    Map<String, JSONArray> columns = new LinkedHashMap<>();
+    Map<String, Map<Object, Integer>> indexes = new HashMap<>();
+    Map<String, JSONArray> tables = new HashMap<>();
+    for (String[] dictionary : DICTIONARIES) {
+      indexes.put(dictionary[0], new HashMap<Object, Integer>());
+      tables.put(dictionary[0], new JSONArray());
+    }
+
+    for (int i = 0; i < n; i++) {
+      JSONObject point = points.getJSONObject(i);
+      Iterator<String> keys = point.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        JSONArray column = columns.get(key);
+        if (column == null) {
+          column = new JSONArray();
+          columns.put(key, column);
+        }
+        while (column.length() < i) column.put(JSONObject.NULL);
+        Object value = point.get(key);
+        Map<Object, Integer> index = indexes.get(key);
+        if (index != null) {
+          Integer idx = index.get(value);
+          if (idx == null) {
+            idx = index.size();
+            index.put(value, idx);
+            tables.get(key).put(value);
+          }
+          value = idx;
+        }
+        column.put(value);
+      }
+    }
+
+    if (DELTA.equals(format)) {
+      for (String key : TIMESTAMPS) {
+        if (columns.containsKey(key)) columns.put(key, deltas(columns.get(key)));
+      }
+    }
+
+    JSONObject result = new JSONObject();
+    result.put("format", format);
+    result.put("count", n);
+    for (Map.Entry<String, JSONArray> column : columns.entrySet()) {
+      while (column.getValue().length() < n) column.getValue().put(JSONObject.NULL);
+      result.put(column.getKey(), column.getValue());
+    }
+    for (String[] dictionary : DICTIONARIES) {
+      result.put(dictionary[1], tables.get(dictionary[0]));
+    }
+    return result;
+  }
+
+  // replaces each timestamp with the difference from the previous one
+  // missing timestamps stay null, the following one is the difference from the last timestamp present
+  private static JSONArray deltas(JSONArray column) throws JSONException {
+    JSONArray deltas = new JSONArray();
+    long previous = 0;
+    for (int i = 0; i < column.length(); i++) {
+      if (column.isNull(i)) {
+        deltas.put(JSONObject.NULL);
+        continue;
+      }
+      long value = column.getLong(i);
+      deltas.put(value - previous);
+      previous = value;
+    }
+    return deltas;
+  }
+}
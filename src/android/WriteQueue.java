@@ -0,0 +1,300 @@
+package org.apache.cordova.health;
+
+import android.util.Log;
+
+import com.google.android.gms.tasks.Task;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable queue of samples to be stored into Google Fit, written in batches on an interval or when enough are queued.
+ * Queued samples are kept in a journal file, so that they are not lost if the app is closed before they are written.
+ * Samples are removed from the journal only after Google Fit has confirmed them: if the app is killed in between,
+ * they are written again on the next run, so a sample may be stored twice but never lost.
+ * MIT licensed.
+ */
+class WriteQueue {
+  private static final String TAG = "cordova-plugin-health";
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // longest wait between two attempts after repeated failures
+  private static final long MAX_BACKOFF = TimeUnit.HOURS.toMillis(1);
+
+  // writes a batch of samples, the resulting array has the outcome of each sample in the same order
+  // an outcome with refused set means that its group was refused because of the content of one of its samples
+  // returns null if samples cannot be written at the moment (e.g. not authorized yet)
+  interface SampleWriter {
+    Task<JSONArray> write(JSONArray samples) throws Exception;
+  }
+
+  // notified once a sample has been written, or when it has been given up
+  interface Listener {
+    void onWritten(JSONObject outcome);
+  }
+
+  // Helper class used for storing a queued sample
+  private static class QueuedSample {
+    public final JSONObject sample;
+    public int attempts;
+    // written on its own, because it was part of a group that Google Fit refused for its content
+    public boolean isolated;
+    public Listener listener;
+
+    public QueuedSample(JSONObject sample, int attempts) {
+      this.sample = sample;
+      this.attempts = attempts;
+    }
+
+    public String toJournalLine() throws JSONException {
+      JSONObject line = new JSONObject();
+      line.put("attempts", attempts);
+      if (isolated) line.put("isolated", true);
+      line.put("sample", sample);
+      return line.toString() + "\n";
+    }
+  }
+
+  private final File journal;
+  private final SampleWriter writer;
+  private final long flushInterval;
+  private final int flushSize;
+  private final int maxAttempts;
+  private final ScheduledExecutorService scheduler;
+
+  private final List<QueuedSample> pending = new ArrayList<>();
+  private boolean flushing = false;
+  private ScheduledFuture<?> scheduled;
+  // consecutive flushes with failed samples, used for the backoff
+  private int failures = 0;
+
+  /**
+   * @param journal       file where queued samples are kept
+   * @param writer        writes the samples into Google Fit
+   * @param flushInterval maximum time a sample waits in the queue, in milliseconds
+   * @param flushSize     number of queued samples that triggers a write straight away
+   * @param maxAttempts   number of failed writes after which a sample is given up
+   */
+  WriteQueue(File journal, SampleWriter writer, long flushInterval, int flushSize, int maxAttempts) {
+    this.journal = journal;
+    this.writer = writer;
+    this.flushInterval = flushInterval;
+    this.flushSize = flushSize;
+    this.maxAttempts = maxAttempts;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, TAG + "-writes"));
+    // samples left from a previous run are loaded before any new one can be queued,
+    // and are written as soon as possible
+    synchronized (this) {
+      load();
+    }
+    scheduleFlush(0);
+  }
+
+  /**
+   * Appends a sample to the queue. The listener, if any, is notified once the sample is written or given up.
+   * Listeners are not kept across restarts of the app, while samples are.
+   */
+  synchronized void enqueue(JSONObject sample, Listener listener) throws IOException, JSONException {
+    QueuedSample queued = new QueuedSample(sample, 0);
+    queued.listener = listener;
+    FileOutputStream out = new FileOutputStream(journal, true);
+    try {
+      out.write(queued.toJournalLine().getBytes(UTF8));
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    pending.add(queued);
+    scheduleFlush(pending.size() >= flushSize ? 0 : flushInterval);
+  }
+
+  // writes the queued samples as soon as possible, unless waiting after a failure
+  void flush() {
+    scheduleFlush(0);
+  }
+
+  // stops writing, queued samples stay in the journal
+  void close() {
+    scheduler.shutdownNow();
+  }
+
+  private synchronized void scheduleFlush(long delay) {
+    if (flushing || pending.isEmpty() || scheduler.isShutdown()) return; // rescheduled when the current flush completes
+    if (failures > 0) {
+      delay = Math.max(delay, Math.min(MAX_BACKOFF, flushInterval << Math.min(failures, 16)));
+    }
+    if (scheduled != null && !scheduled.isDone()) {
+      if (scheduled.getDelay(TimeUnit.MILLISECONDS) <= delay) return;
+      scheduled.cancel(false);
+    }
+    scheduled = scheduler.schedule(this::runFlush, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private void runFlush() {
+    final List<QueuedSample> batch;
+    JSONArray samples = new JSONArray();
+    synchronized (this) {
+      if (flushing || pending.isEmpty()) return;
+      flushing = true;
+      QueuedSample isolated = firstIsolated();
+      if (isolated != null) {
+        // samples of a refused group are retried one by one, so that a bad one does not hold back the others
+        batch = new ArrayList<>();
+        batch.add(isolated);
+      } else {
+        batch = new ArrayList<>(pending);
+      }
+    }
+    for (QueuedSample queued : batch) {
+      samples.put(queued.sample);
+    }
+    Task<JSONArray> task = null;
+    try {
+      task = writer.write(samples);
+    } catch (Exception ex) {
+      Log.w(TAG, "Cannot write queued samples", ex);
+    }
+    if (task == null) {
+      // not possible at the moment, this does not count as an attempt
+      synchronized (this) {
+        flushing = false;
+      }
+      scheduleFlush(flushInterval);
+      return;
+    }
+    task.addOnCompleteListener(scheduler, t -> onFlushed(batch, t.isSuccessful() ? t.getResult() : null));
+  }
+
+  private void onFlushed(List<QueuedSample> batch, JSONArray outcomes) {
+    List<QueuedSample> done = new ArrayList<>();
+    List<JSONObject> doneOutcomes = new ArrayList<>();
+    synchronized (this) {
+      boolean failed = false;
+      for (int i = 0; i < batch.size(); i++) {
+        QueuedSample queued = batch.get(i);
+        JSONObject outcome = outcomes != null ? outcomes.optJSONObject(i) : null;
+        if (outcome != null && outcome.optBoolean("success", false)) {
+          done.add(queued);
+          doneOutcomes.add(outcome);
+          continue;
+        }
+        boolean refused = outcome != null && outcome.optBoolean("refused", false);
+        if (refused && batch.size() > 1) {
+          // the whole group may have been refused because of another sample, this does not count as an attempt
+          queued.isolated = true;
+          continue;
+        }
+        if (refused) {
+          // refused on its own, writing it again would not help
+          Log.w(TAG, "Giving up queued sample refused by Google Fit");
+          done.add(queued);
+          doneOutcomes.add(outcome);
+          continue;
+        }
+        // any other failure may not happen again, the sample goes back with the others
+        queued.isolated = false;
+        queued.attempts++;
+        if (queued.attempts >= maxAttempts) {
+          Log.w(TAG, "Giving up queued sample after " + queued.attempts + " attempts");
+          done.add(queued);
+          doneOutcomes.add(outcome != null ? outcome : failure("Cannot write sample"));
+        } else {
+          failed = true;
+        }
+      }
+      pending.removeAll(done);
+      failures = failed ? failures + 1 : 0;
+      try {
+        rewrite();
+      } catch (Exception ex) {
+        Log.e(TAG, "Cannot update the journal of queued samples", ex);
+      }
+      flushing = false;
+    }
+    for (int i = 0; i < done.size(); i++) {
+      if (done.get(i).listener != null) done.get(i).listener.onWritten(doneOutcomes.get(i));
+    }
+    synchronized (this) {
+      scheduleFlush(pending.size() >= flushSize || firstIsolated() != null ? 0 : flushInterval);
+    }
+  }
+
+  private QueuedSample firstIsolated() {
+    for (QueuedSample queued : pending) {
+      if (queued.isolated) return queued;
+    }
+    return null;
+  }
+
+  private static JSONObject failure(String message) {
+    JSONObject outcome = new JSONObject();
+    try {
+      outcome.put("success", false);
+      outcome.put("error", message);
+    } catch (JSONException ignored) {
+    }
+    return outcome;
+  }
+
+  // reads the samples left in the journal, a line cut by the app being closed is skipped
+  private void load() {
+    if (!journal.exists()) return;
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), UTF8));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          try {
+            JSONObject obj = new JSONObject(line);
+            QueuedSample queued = new QueuedSample(obj.getJSONObject("sample"), obj.getInt("attempts"));
+            queued.isolated = obj.optBoolean("isolated", false);
+            pending.add(queued);
+          } catch (JSONException ex) {
+            Log.w(TAG, "Skipping corrupted line of the journal of queued samples");
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      Log.d(TAG, pending.size() + " queued samples found in the journal");
+    } catch (IOException ex) {
+      Log.e(TAG, "Cannot read the journal of queued samples", ex);
+    }
+  }
+
+  // replaces the journal with the samples still pending
+  private void rewrite() throws IOException, JSONException {
+    File tmp = new File(journal.getPath() + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      Writer w = new OutputStreamWriter(out, UTF8);
+      for (QueuedSample queued : pending) {
+        w.write(queued.toJournalLine());
+      }
+      w.flush();
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(journal)) {
+      throw new IOException("Cannot replace " + journal.getPath());
+    }
+  }
+}
@@ -12,6 +12,14 @@ Health.prototype.disconnect = function (onSuccess, onError) {
   exec(onSuccess, onError, "health", "disconnect", []);
 };
 
+Health.prototype.getCacheStats = function (onSuccess, onError) {
+  exec(onSuccess, onError, "health", "getCacheStats", []);
+};
+
+Health.prototype.setWarmUp = function (list, onSuccess, onError) {
+  exec(onSuccess, onError, "health", "setWarmUp", [list]);
+};
+
 Health.prototype.promptInstallFit = function (onSuccess, onError) {
   exec(onSuccess, onError, "health", "promptInstallFit", []);
 };
@@ -25,111 +33,102 @@ Health.prototype.isAuthorized = function (datatypes, onSuccess, onError) {
 };
 
 Health.prototype.query = function (opts, onSuccess, onError) {
-  //calories.active is done by asking all calories and subtracting the basal
-  if(opts.dataType =='calories.active'){
-    //get basal average in the time window between endDate and BASAL_CALORIES_QUERY_PERIOD
-    navigator.health.queryAggregated({
-      dataType:'calories.basal',
-      endDate: opts.endDate,
-      startDate: opts.startDate,
-      bucket: opts.bucket
-    }, function(data){
-      var basal_ms = data.value / (opts.endDate - opts.startDate);
-      //now get the total
-      opts.dataType ='calories';
-      navigator.health.query(opts, function(data){
-        //and subtract the basal
-        for(var i=0; i<data.length; i++){
-          data[i].value -= basal_ms * (data[i].endDate.getTime() - data[i].startDate.getTime());
-
-          //although it shouldn't happen, after subtracting, sometimes the values are negative,
-          //in that case let's return 0 (negative values don't make sense)
-          if(data[i].value <0) data[i].value = 0;
-        }
-        onSuccess(data);
-      }, onError);
-    }, onError);
-  } else {
-    //standard case, just use the name as it is
-    if(opts.startDate && (typeof opts.startDate == 'object'))
-    opts.startDate = opts.startDate.getTime();
-    if(opts.endDate && (typeof opts.endDate == 'object'))
-    opts.endDate = opts.endDate.getTime();
-    exec(function(data){
+  if(opts.startDate && (typeof opts.startDate == 'object'))
+  opts.startDate = opts.startDate.getTime();
+  if(opts.endDate && (typeof opts.endDate == 'object'))
+  opts.endDate = opts.endDate.getTime();
+  exec(function(data){
+    if(opts.paginate || opts.cursor){
+      // a page with the cursor to the next one
+      convertDates(data.data);
+      onSuccess(data);
+      return;
+    }
+    if(opts.chunkSize && data.done){
+      // end of the chunks
+      onSuccess([], true);
+      return;
+    }
+    convertDates(data);
+    if(opts.chunkSize) onSuccess(data, false);
+    else onSuccess(data);
+  }, onError, "health", "query", [opts]);
+};
+
+Health.prototype.queryAggregated = function (opts, onSuccess, onError) {
+  if(typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime();
+  if(typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime();
+  exec(function(data){
+    //reconvert the dates back to Date objects
+    if(Object.prototype.toString.call( data ) === '[object Array]'){
+      //it's an array
       for(var i=0; i<data.length; i++){
         data[i].startDate = new Date(data[i].startDate);
         data[i].endDate = new Date(data[i].endDate);
       }
-      // if nutrition, add water
-      if(opts.dataType == 'nutrition'){
-        opts.dataType ='nutrition.water';
-        navigator.health.query(opts, function(water){
-            // merge and sort
-            for(var i=0; i<water.length; i++) {
-                water[i].value = { item: "water", nutrients: { "nutrition.water": water[i].value } };
-                water[i].unit = "nutrition";
-            }
-            data.concat(water);
-            data = data.concat(water);
-            data.sort(function(a,b){
-                return a.startDate - b.startDate;
-            })
-            onSuccess(data);
-        }, onError)
-      } else {
-        onSuccess(data);
-      }
-    }, onError, "health", "query", [opts]);
+    } else {
+      data.startDate = new Date(data.startDate);
+      data.endDate = new Date(data.endDate);
+    }
+
+    onSuccess(data);
+  }, onError, 'health', 'queryAggregated', [opts]);
+};
+
+Health.prototype.queryMulti = function (opts, onSuccess, onError) {
+  if(opts.startDate && (typeof opts.startDate == 'object'))
+  opts.startDate = opts.startDate.getTime();
+  if(opts.endDate && (typeof opts.endDate == 'object'))
+  opts.endDate = opts.endDate.getTime();
+  exec(function(data){
+    for(var dataType in data){
+      convertDates(data[dataType]);
+    }
+    onSuccess(data);
+  }, onError, "health", "queryMulti", [opts]);
+};
+
+Health.prototype.sync = function (opts, onSuccess, onError) {
+  if(opts.startDate && (typeof opts.startDate == 'object'))
+  opts.startDate = opts.startDate.getTime();
+  if(opts.mark && (typeof opts.mark == 'object'))
+  opts.mark = opts.mark.getTime();
+  exec(function(data){
+    convertDates(data.data);
+    data.mark = new Date(data.mark);
+    onSuccess(data);
+  }, onError, "health", "sync", [opts]);
+};
+
+// reconverts the dates of the datapoints back to Date objects
+// columnar results are left with timestamps
+var convertDates = function (data) {
+  if(!Array.isArray(data)) return;
+  for(var i=0; i<data.length; i++){
+    data[i].startDate = new Date(data[i].startDate);
+    data[i].endDate = new Date(data[i].endDate);
   }
 };
 
-Health.prototype.queryAggregated = function (opts, onSuccess, onError) {
-  if(opts.dataType =='calories.active'){
-    //get basal average
-    navigator.health.queryAggregated({
-      dataType:'calories.basal',
-      endDate: opts.endDate,
-      startDate: opts.startDate
-    }, function(data){
-      var basal_ms = data.value / (opts.endDate - opts.startDate);
-      //now get the total
-      opts.dataType ='calories';
-      navigator.health.queryAggregated(opts, function(retval){
-        //and remove the basal
-        retval.value -= basal_ms * (retval.endDate.getTime() - retval.startDate.getTime());
-        //although it shouldn't happen....
-        if(retval.value <0) retval.value = 0;
-        onSuccess(retval);
-      }, onError);
-    }, onError);
-  } else {
-    if(typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime();
-    if(typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime();
-    exec(function(data){
-      //reconvert the dates back to Date objects
-      if(Object.prototype.toString.call( data ) === '[object Array]'){
-        //it's an array
-        for(var i=0; i<data.length; i++){
-          data[i].startDate = new Date(data[i].startDate);
-          data[i].endDate = new Date(data[i].endDate);
+Health.prototype.queryAggregatedMulti = function (opts, onSuccess, onError) {
+  if(typeof opts.startDate == 'object') opts.startDate = opts.startDate.getTime();
+  if(typeof opts.endDate == 'object') opts.endDate = opts.endDate.getTime();
+  exec(function(data){
+    //reconvert the dates back to Date objects
+    for(var dataType in data){
+      var res = data[dataType];
+      if(Object.prototype.toString.call( res ) === '[object Array]'){
+        for(var i=0; i<res.length; i++){
+          res[i].startDate = new Date(res[i].startDate);
+          res[i].endDate = new Date(res[i].endDate);
         }
       } else {
-        data.startDate = new Date(data.startDate);
-        data.endDate = new Date(data.endDate);
-      }
-
-      // if nutrition, add water
-      if(opts.dataType == 'nutrition'){
-        opts.dataType ='nutrition.water';
-        navigator.health.queryAggregated(opts, function(water){
-            data.value['nutrition.water'] = water.value;
-            onSuccess(data);
-        }, onError)
-      } else {
-          onSuccess(data);
+        res.startDate = new Date(res.startDate);
+        res.endDate = new Date(res.endDate);
       }
-    }, onError, 'health', 'queryAggregated', [opts]);
-  }
+    }
+    onSuccess(data);
+  }, onError, 'health', 'queryAggregatedMulti', [opts]);
 };
 
 Health.prototype.store = function (data, onSuccess, onError) {
@@ -151,6 +150,33 @@ Health.prototype.store = function (data, onSuccess, onError) {
   exec(onSuccess, onError, "health", "store", [data]);
 };
 
+Health.prototype.storeBatch = function (samples, onSuccess, onError) {
+  for(var i=0; i<samples.length; i++){
+    if(samples[i].dataType =='calories.basal'){
+      onError('basal calories cannot be stored in Android');
+      return;
+    }
+  }
+  var converted = [];
+  for(var i=0; i<samples.length; i++){
+    var data = {};
+    for(var prop in samples[i]) data[prop] = samples[i][prop];
+    if(data.dataType =='calories.active'){
+      //rename active calories to total calories
+      data.dataType ='calories';
+    }
+    if(data.startDate && (typeof data.startDate == 'object'))
+    data.startDate = data.startDate.getTime();
+    if(data.endDate && (typeof data.endDate == 'object'))
+    data.endDate = data.endDate.getTime();
+    if(data.dataType =='activity'){
+      data.value = navigator.health.toFitActivity(data.value);
+    }
+    converted.push(data);
+  }
+  exec(onSuccess, onError, "health", "storeBatch", [converted]);
+};
+
 Health.prototype.delete = function (data, onSuccess, onError) {
   if(data.dataType =='calories.basal'){
     onError('basal calories cannot be deleted in Android');
@@ -170,6 +196,30 @@ Health.prototype.delete = function (data, onSuccess, onError) {
   exec(onSuccess, onError, "health", "delete", [data]);
 };
 
+Health.prototype.deleteBatch = function (ranges, onSuccess, onError) {
+  for(var i=0; i<ranges.length; i++){
+    if(ranges[i].dataType =='calories.basal'){
+      onError('basal calories cannot be deleted in Android');
+      return;
+    }
+  }
+  var converted = [];
+  for(var i=0; i<ranges.length; i++){
+    var data = {};
+    for(var prop in ranges[i]) data[prop] = ranges[i][prop];
+    if(data.dataType =='calories.active'){
+      //rename active calories to total calories
+      data.dataType ='calories';
+    }
+    if(data.startDate && (typeof data.startDate == 'object'))
+    data.startDate = data.startDate.getTime();
+    if(data.endDate && (typeof data.endDate == 'object'))
+    data.endDate = data.endDate.getTime();
+    converted.push(data);
+  }
+  exec(onSuccess, onError, "health", "deleteBatch", [converted]);
+};
+
 Health.prototype.toFitActivity = function (act) {
 	const acts = {
 		supported:{